@@ -46,5 +46,64 @@ public @interface CircuitBreaker {
         long retryAfterMs() default 10000l;
         Class<? extends Throwable> [] failureIndications() default {Exception.class};  
 
-        // TODO exclude exceptions for failure
+        /**
+         * Failure rate mode: open the circuit when this percentage (1-100) of the calls within
+         * failureThresholdTimeFrameMs failed. 0 keeps the failureThreshold count mode.
+         */
+        int failureRateThreshold() default 0;
+
+        /**
+         * Failure rate mode: calls needed within failureThresholdTimeFrameMs before the failure rate is evaluated.
+         */
+        int minimumNumberOfCalls() default 100;
+
+        /**
+         * Failure rate mode: number of buckets the failureThresholdTimeFrameMs sliding window is divided into.
+         */
+        int slidingWindowBuckets() default 10;
+
+        /**
+         * Slow call mode: calls taking at least this long are counted as slow. 0 disables slow call detection.
+         */
+        long slowCallDurationThresholdMs() default 0l;
+
+        /**
+         * Slow call mode: open the circuit when this percentage (1-100) of the calls within failureThresholdTimeFrameMs
+         * were slow, once minimumNumberOfCalls calls were seen.
+         */
+        int slowCallRateThreshold() default 100;
+
+        /**
+         * Number of concurrent trial calls let through once retryAfterMs elapsed (max 1023).
+         * Other callers keep getting OpenCircuitException while the trial calls are in flight.
+         */
+        int permittedNumberOfCallsInHalfOpenState() default 1;
+
+        /**
+         * Percentage (1-100) of the permittedNumberOfCallsInHalfOpenState trial calls that must succeed to close the circuit.
+         * The circuit opens again as soon as this can not be reached anymore. Values outside 1-100 are taken as the nearest bound.
+         */
+        int halfOpenSuccessRateThreshold() default 100;
+
+        /**
+         * Backoff: retryAfterMs is multiplied by this factor each time a half open trial fails and the circuit opens
+         * again. It is reset to retryAfterMs when the circuit closes. 1 keeps a fixed retryAfterMs.
+         */
+        double retryAfterMultiplier() default 1;
+
+        /**
+         * Backoff: upper bound of the wait between OPEN and HALF_OPEN. 0 means no bound.
+         */
+        long maxRetryAfterMs() default 0l;
+
+        /**
+         * Backoff: randomizes each wait by up to this fraction (0-1) in either direction, so breakers of
+         * several instances do not probe a recovering backend in lockstep.
+         */
+        double retryAfterJitter() default 0;
+
+        /**
+         * Exceptions that are never counted as failures, even if they are subclasses of one of the failureIndications.
+         */
+        Class<? extends Throwable> [] excludeExceptions() default {};
 }
\ No newline at end of file
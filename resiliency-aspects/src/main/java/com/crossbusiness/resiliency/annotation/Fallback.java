@@ -46,8 +46,11 @@ public @interface Fallback {
      * Failure Indications
      * When to fallback (in case of what exception types).
      * Specify exceptions for which the operation should fallback to alternative.
-     * @todo  exclude exception as failure
      */
 	Class<? extends Throwable> [] exceptions() default {Exception.class};  
-      // TODO exclude exception as failure
+
+    /**
+     * Exceptions that never fallback, even if they are subclasses of one of the exceptions above.
+     */
+	Class<? extends Throwable> [] excludeExceptions() default {};
 } 
\ No newline at end of file
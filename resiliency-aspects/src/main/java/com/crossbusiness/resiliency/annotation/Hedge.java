@@ -0,0 +1,82 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedged requests for latency-sensitive, idempotent operations <BR>
+ * If a call has not completed after a delay, a second attempt is started concurrently and the first one to
+ * succeed is returned; the other one is cancelled. A budget caps the extra load that hedging adds.
+ * Ref: Dean and Barroso, The Tail at Scale
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Hedge {
+
+    /**
+     * Delay before the second attempt, in time units. 0 derives it from the observed latency of the method,
+     * see {@link #percentile()}.
+     */
+    long delay() default 0;
+
+    /**
+     * Time units.
+     */
+    TimeUnit unit() default TimeUnit.MILLISECONDS;
+
+    /**
+     * Without a fixed delay: the percentile of the observed latency after which the second attempt starts.
+     * Nothing is hedged until enough calls have been observed.
+     */
+    double percentile() default 95;
+
+    /**
+     * Hedging budget: second attempts allowed per call, e.g. 0.05 lets hedging add at most 5% load.
+     * 0 disables hedging.
+     */
+    double budgetRatio() default 0.05;
+
+    /**
+     * Hedging budget: second attempts allowed per second regardless of the ratio.
+     */
+    int budgetMinHedgesPerSecond() default 1;
+
+    /**
+     * Qualifier of a registered Executor bean to run the attempts on.<BR>
+     * 		If no value is defined or qualifier not found, then it will look for a bean named "hedgeExecutor".<BR>
+     * 		If "hedgeExecutor" is also not found, then it will use a built-in bounded pool of daemon threads.<BR>
+     */
+    String executor() default "";
+
+}
@@ -60,18 +60,80 @@ public @interface Retry {
      */
     TimeUnit unit() default TimeUnit.MILLISECONDS;
 
+    /**
+     * How the delay grows from one attempt to the next.
+     */
+    Backoff backoff() default Backoff.FIXED;
+
+    /**
+     * Backoff: the delay is multiplied by this factor after each failed attempt.
+     */
+    double multiplier() default 2;
+
+    /**
+     * Backoff: upper bound of the delay, in time units. 0 means no bound.
+     */
+    long maxDelay() default 0;
+
+    /**
+     * Retry budget: retries allowed per successful call, e.g. 0.1 lets retries add at most a tenth to the load of
+     * the calls that succeed. 0 means no budget, every eligible failure is retried.
+     */
+    double budgetRatio() default 0;
+
+    /**
+     * Retry budget: retries allowed per second even when no call succeeds.
+     */
+    int budgetMinRetriesPerSecond() default 10;
+
+    /**
+     * Retry budget: name of a budget shared by all methods naming it. Empty for a budget of the method alone.
+     */
+    String budget() default "";
+
     /**
      * Failure Indications
      * When to retry (in case of what exception types).
      * Specify exceptions for which operation should be retried.
-     * @todo  exclude exception as failure
      */
     Class<? extends Exception>[] exceptions() default {Exception.class };
 
+    /**
+     * Exceptions that are never retried, even if they are subclasses of one of the exceptions above.
+     */
+    Class<? extends Throwable>[] excludeExceptions() default {};
+
     /**
      * Shall it be fully verbose (show full exception trace) or just
      * exception message?
      */
     boolean verbose() default true;
 
+    /**
+     * Delay between attempts. The jittered strategies randomize it, so instances that failed together do not
+     * retry in lockstep.
+     */
+    enum Backoff {
+        /**
+         * delay every time.
+         */
+        FIXED,
+        /**
+         * delay * multiplier^(attempt - 1).
+         */
+        EXPONENTIAL,
+        /**
+         * random between 0 and the exponential delay.
+         */
+        FULL_JITTER,
+        /**
+         * half the exponential delay plus a random part of up to the other half.
+         */
+        EQUAL_JITTER,
+        /**
+         * random between delay and three times the previous delay.
+         */
+        DECORRELATED_JITTER
+    }
+
 }
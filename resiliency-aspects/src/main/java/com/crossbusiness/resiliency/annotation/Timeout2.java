@@ -32,7 +32,11 @@ import java.util.concurrent.TimeUnit;
 @Retention(RetentionPolicy.RUNTIME)
 @Target({ElementType.METHOD, ElementType.TYPE})
 public @interface Timeout2 {
- 
+
+    /**
+     * @deprecated the method runs on an executor now, whose threads decide; the built-in pool uses daemon threads.
+     */
+    @Deprecated
 	boolean daemon() default false;
  
 	long value();
@@ -43,5 +47,13 @@ public @interface Timeout2 {
      * 		java.util.concurrent.TimeUnit.MILLISECONDS
      */
     TimeUnit unit() default TimeUnit.MILLISECONDS;
+
+    /**
+     * Qualifier of a registered Executor bean to run the method on.<BR>
+     * 		If no value is defined or qualifier not found, then it will look for a bean named "timeoutExecutor".<BR>
+     * 		If "timeoutExecutor" is also not found, then it will use a built-in bounded pool of daemon threads.<BR>
+     * 		A call the executor rejects, e.g. because the built-in pool has no free thread, fails with a TimeoutException.<BR>
+     */
+    String executor() default "";
  
 }
\ No newline at end of file
@@ -36,7 +36,6 @@ import com.crossbusiness.resiliency.exception.CircuitBreakerMethodExecutionExcep
 import com.crossbusiness.resiliency.exception.OpenCircuitException;
 
 
-import org.aspectj.lang.reflect.MethodSignature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,9 +46,11 @@ import org.slf4j.LoggerFactory;
 //TODO use both around and after() throwing
 @Aspect
 public abstract class AbstractCircuitBreakerAspect {
-        // TODO implement statistics
     protected final Logger log = LoggerFactory.getLogger(getClass());
 
+    // per call traces, see SampledLogger. state transitions are always logged, by the registry entries and below.
+    private final SampledLogger trace = new SampledLogger(log, 10);
+
     private static CircuitBreakerMethodRegistry registry = new CircuitBreakerMethodRegistry();
 
 
@@ -64,52 +65,61 @@ public abstract class AbstractCircuitBreakerAspect {
     // @Around("circuitBreakerMethod(circuitBreakerConfig)")
     public Object breakCircuit(final ProceedingJoinPoint pjp, CircuitBreaker circuitBreakerConfig) throws Throwable {
         Object result = null;
-            final String method = pjp.getSignature().toLongString();
+            final CircuitBreakerRegistryEntry breaker = registry.registeredMehtodIfnecessary(pjp.getStaticPart(), circuitBreakerConfig);
+            final String method = breaker.getName();
             CircuitBreakerStatus status = null;
+            long token = 0;
+            long start = 0;
             try {
-                    final MethodSignature sig = (MethodSignature) pjp.getStaticPart().getSignature();
-                    registry.registeredMehtodIfnecessary(method, circuitBreakerConfig);
-                    status = registry.getStatusWithHalfOpenExclusiveLockTry(method);
+                    token = registry.getCallTokenWithHalfOpenExclusiveLockTry(breaker);
+                    status = CircuitBreakerMethodRegistry.statusOf(token);
                     if (status.equals(CircuitBreakerStatus.OPEN)) {
-                        log.info("CIRCUIT STATUS: OPEN. Method {} can not be executed. try later!", method);
+                            trace("CIRCUIT STATUS: OPEN. Method {} can not be executed. try later!", method);
+                            registry.callNotPermitted(breaker);
                             throw new OpenCircuitException();
                     } else if (status.equals(CircuitBreakerStatus.HALF_OPEN)) {
-                        log.info("CIRCUIT STATUS: HALF_OPEN. Another thread has the exclusive lock for half open. Method {} can not be executed.", method);
+                            trace("CIRCUIT STATUS: HALF_OPEN. Another thread owns the half open trial call. Method {} can not be executed.", method);
+                            registry.callNotPermitted(breaker);
                             throw new OpenCircuitException();
                     } else if (status.equals(CircuitBreakerStatus.CLOSED)) {
-                        log.info("CIRCUIT STATUS: CLOSED. execute method {}", method);
+                            trace("CIRCUIT STATUS: CLOSED. execute method {}", method);
+                            start = System.nanoTime();
                             result = proceed(pjp);
+                            registry.addSuccess(breaker, token, System.nanoTime() - start);
                     } else if (status.equals(CircuitBreakerStatus.HALF_OPEN_EXCLUSIVE)) {
-                        log.info("CIRCUIT STATUS: HALF_OPEN_EXCLUSIVE. This thread win the exclusive lock for the half open call. execute method: {}", method);
+                            trace("CIRCUIT STATUS: HALF_OPEN_EXCLUSIVE. This thread won one of the half open trial calls. execute method: {}", method);
+                            start = System.nanoTime();
                             result = proceed(pjp);
-                        log.info("CIRCUIT STATUS: HALF_OPEN_EXCLUSIVE. method execution was successfull. now close circuit for method {}", method);
-                            registry.closeAndUnlock(method);
+                            CircuitBreakerStatus trialStatus = registry.halfOpenTrialSucceeded(breaker, token, System.nanoTime() - start);
+                            trace("CIRCUIT STATUS: HALF_OPEN_EXCLUSIVE. method execution was successfull. circuit for method {} is now {}", method, trialStatus);
                     }
 
             } catch (CircuitBreakerMethodExecutionException e) {
                     Throwable throwable = e.getCause();
-                    for (Class<? extends Throwable> clazz : registry.getfailureIndications(method)){
-                            if (clazz.isAssignableFrom(throwable.getClass())) {
-                                    // detected a failure
-                                log.info("detected failure. failure indication: {} \nException:", clazz.getCanonicalName(), throwable);
-                                    if (status.equals(CircuitBreakerStatus.CLOSED) && registry.sameClosedCycleInLocalAndGlobaleContext(method)) {
-                                        log.info("Valid failure: method call and failure are in the same CLOSED cycle.");
-                                            registry.addFailureAndOpenCircuitIfThresholdAchived(method);
-                                    } else if (status.equals(CircuitBreakerStatus.HALF_OPEN_EXCLUSIVE)) {
-                                            registry.keepOpenAndUnlock(method);
+                    if (breaker.isFailure(throwable)) {
+                            // detected a failure
+                            trace("detected failure. \nException:", throwable);
+                            if (status.equals(CircuitBreakerStatus.CLOSED) && registry.sameClosedCycleInLocalAndGlobaleContext(breaker, token)) {
+                                    trace("Valid failure of method {}: method call and failure are in the same CLOSED cycle.", method);
+                                    if (registry.addFailureAndOpenCircuitIfThresholdAchived(breaker, token, System.nanoTime() - start)) {
+                                            log.warn("CIRCUIT STATUS: OPEN. failure threshold of method {} reached with:", method, throwable);
+                                    }
+                            } else if (status.equals(CircuitBreakerStatus.HALF_OPEN_EXCLUSIVE)) {
+                                    if (registry.halfOpenTrialFailed(breaker, token) == CircuitBreakerStatus.OPEN) {
+                                            log.warn("CIRCUIT STATUS: OPEN. half open trial call of method {} failed with:", method, throwable);
                                     }
-                                    throw throwable;
                             }
+                            throw throwable;
                     }
                     // thrown exception is not a failureIndication
                     if (status.equals(CircuitBreakerStatus.HALF_OPEN_EXCLUSIVE)) {
-                        log.info("CIRCUIT STATUS: HALF_OPEN_EXCLUSIVE. method execution was successfull. now close circuit for method {}", method);
-                            registry.closeAndUnlock(method);
+                            CircuitBreakerStatus trialStatus = registry.halfOpenTrialSucceeded(breaker, token, System.nanoTime() - start);
+                            trace("CIRCUIT STATUS: HALF_OPEN_EXCLUSIVE. method execution was successfull. circuit for method {} is now {}", method, trialStatus);
+                    } else if (status.equals(CircuitBreakerStatus.CLOSED)) {
+                            registry.addSuccess(breaker, token, System.nanoTime() - start);
                     }
                     // throw the original method execution exception upper to the method invoker
                     throw throwable;
-            } finally {
-                    registry.cleanUp(method);
             }
             return result;
     }
@@ -118,11 +128,26 @@ public abstract class AbstractCircuitBreakerAspect {
             try {
                     return pjp.proceed();
             } catch (Throwable t) {
-                log.debug("Exception while method execution: {}", pjp.getSignature().toLongString());
+                    trace("Exception while method execution: {}", pjp.getSignature());
                     throw new CircuitBreakerMethodExecutionException(t);
             }
     }
 
+    /**
+     * writes a per call trace, if tracing is enabled and the sampling rate allows it.
+     */
+    private void trace(String format, Object argument) {
+        if (SampledLogger.ENABLED && trace.sample()) {
+            trace.debug(format, argument);
+        }
+    }
+
+    private void trace(String format, Object first, Object second) {
+        if (SampledLogger.ENABLED && trace.sample()) {
+            trace.debug(format, first, second);
+        }
+    }
+
     protected static void setRegistry(CircuitBreakerMethodRegistry registry) {
             AbstractCircuitBreakerAspect.registry = registry;
     }
@@ -131,6 +156,17 @@ public abstract class AbstractCircuitBreakerAspect {
         return registry.getCircuitBreakersMap() ;
     }
 
+    /**
+     * Subscribe to circuit breaker call outcomes and state transitions.
+     */
+    public static void addEventConsumer(CircuitBreakerEventConsumer consumer) {
+        registry.getEventPublisher().addConsumer(consumer);
+    }
+
+    public static void removeEventConsumer(CircuitBreakerEventConsumer consumer) {
+        registry.getEventPublisher().removeConsumer(consumer);
+    }
+
 
     @Pointcut
     public abstract void circuitBreakerAnnotatedMethod(CircuitBreaker circuitBreakerConfig);
@@ -54,6 +54,8 @@ public abstract class AbstractFallbackAspect {
 	@Autowired
 	private ApplicationContext context;
 
+	private final ExceptionClassifier.Cache fallbackableExceptions = new ExceptionClassifier.Cache();
+
     @Around("fallbackAnnotatedClass(fallbackConfig)")
 	public Object fallbackOnClassLevel(ProceedingJoinPoint pjp, Fallback fallbackConfig) throws Throwable {
 		return rerouteToFallback(pjp, fallbackConfig);
@@ -71,7 +73,6 @@ public abstract class AbstractFallbackAspect {
 	public Object rerouteToFallback(ProceedingJoinPoint pjp, Fallback fallbackConfig) throws Throwable {
 		
 		String[] fallbacks = fallbackConfig.value();
-		Class<? extends Throwable>[] fallbackableExceptions = fallbackConfig.exceptions();
 		
 		List<Object> fallbackBeans = new ArrayList<Object>(fallbacks.length);
 		for (String fallback : fallbacks) {
@@ -96,7 +97,7 @@ public abstract class AbstractFallbackAspect {
 		}catch (Throwable t) {
 			
             // if the exception is not what we're looking for, rethrow it
-        	if (!isFallbackableException(t, fallbackableExceptions)) throw t;
+        	if (!isFallbackableException(pjp, t, fallbackConfig)) throw t;
         	
 			log.debug("got exception while trying the targetBean method: '{}'. will try fallbackBean...",targetMethod);
 			Iterator<Object> iter = fallbackBeans.iterator();
@@ -132,13 +133,13 @@ public abstract class AbstractFallbackAspect {
 	}
 
 
-    static boolean isFallbackableException(Throwable t,  Class<? extends Throwable>[] fallbackableExceptions) {
-    	for (Class<? extends Throwable> throwable : fallbackableExceptions) {
-            if (throwable.isAssignableFrom(t.getClass())) {
-            	return true;
-            }
-		}
-    	return false;
+    private boolean isFallbackableException(ProceedingJoinPoint pjp, Throwable t, Fallback fallbackConfig) {
+        ExceptionClassifier classifier = fallbackableExceptions.get(pjp.getStaticPart(), fallbackConfig);
+        if (classifier == null) {
+            classifier = fallbackableExceptions.put(pjp.getStaticPart(),
+                    new ExceptionClassifier(fallbackConfig, fallbackConfig.exceptions(), fallbackConfig.excludeExceptions()));
+        }
+        return classifier.matches(t);
     }
 
     @Pointcut
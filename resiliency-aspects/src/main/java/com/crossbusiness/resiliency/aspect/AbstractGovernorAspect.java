@@ -24,16 +24,10 @@
 package com.crossbusiness.resiliency.aspect;
 
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
-import javax.annotation.PreDestroy;
-
 import com.crossbusiness.resiliency.annotation.Governor;
 
 import com.crossbusiness.resiliency.exception.ConcurrencyLimitExceededException;
@@ -46,9 +40,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Create a Semaphore with the same permits as the count per period of the throttle (eg: 2, in a 2 invocations per second throttle)
- * Create a Timer that runs as the throttle period and resets all the initial permits of the semaphore (eg: each second)
- * Before each invocation, just try to acquire the semaphore, if there are not permits available, it will block until the timer resets the permits and the method can proceed
+ * CONCURRENCY: a Semaphore with the same permits as the limit, acquired for the duration of each invocation.
+ * RATE: a {@link RateLimiter} that allows the limit of invocations per period, computed from the time of each invocation.
+ * If no permit is available, the invocation blocks until it is, or is rejected if the governor is not blocking.
  */
 /**
  * @author Sumanth Chinthagunta <xmlking@gmail.com>
@@ -76,8 +70,9 @@ public abstract class AbstractGovernorAspect {
 		@Override
 		public Object proceed(ProceedingJoinPoint pjp) throws Throwable {
 			if(blocking) {
+				// outside the try, an interrupted acquire must not release a permit it never got
+				semaphore.acquire();
 				try {
-					semaphore.acquire();
 					return pjp.proceed();
 				}finally {
 					semaphore.release();
@@ -96,44 +91,31 @@ public abstract class AbstractGovernorAspect {
 			}
 		}
 	}
-	private static class RateThrottleDecorator extends ConcurrencyThrottleDecorator{
-		ScheduledFuture timer;
-		
-		public RateThrottleDecorator(final int limit, final long period, final TimeUnit unit, final boolean blocking, ScheduledExecutorService scheduler) {
-			super(limit,blocking);
-			this.timer = scheduler.scheduleAtFixedRate( new TimerTask()
-			{
-			     public void run()
-			     {
-						log.debug("Throttler[limit={},period={},unit={},blocking={}] : {} permits available before release", 
-								new Object[] {limit, period, unit, blocking, semaphore.availablePermits()});
-						synchronized(semaphore) {
-							semaphore.release(limit - semaphore.availablePermits());
-						}
-			     }
-			} , 0, period, unit);
+	private static class RateThrottleDecorator implements Throttler{
+		RateLimiter rateLimiter;
+		boolean blocking;
+
+		public RateThrottleDecorator(int limit, long period, TimeUnit unit, boolean blocking) {
+			this.rateLimiter = new RateLimiter(limit, period, unit);
+			this.blocking = blocking;
 		}
-		
+
 		public Object proceed(ProceedingJoinPoint pjp) throws Throwable {
-			if(timer.isCancelled()) {
-				throw new RuntimeException("Invalid timer!");
-			}
 			if(blocking) {
-				semaphore.acquire();
+				rateLimiter.acquire();
 				return pjp.proceed();
 			} else {
-				if(semaphore.tryAcquire()) {
+				if(rateLimiter.tryAcquire()) {
 					return pjp.proceed();
 				} else {
-					log.warn("Request rejected: rate limit {} exceeded", limit);
-					throw new RateLimitExceededException(limit);					
+					log.warn("Request rejected: rate limit {} exceeded", rateLimiter.getLimit());
+					throw new RateLimitExceededException(rateLimiter.getLimit());
 				}
 			}
 		}
 	}
 	
 	Map<String, Throttler> throttles = new ConcurrentHashMap<String, Throttler>();
-	ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
     @Around("governorAnnotatedClass(governorConfig)")
     public Object governorOnClassLevel(final ProceedingJoinPoint pjp, Governor governorConfig) throws Throwable {
@@ -157,7 +139,7 @@ public abstract class AbstractGovernorAspect {
 					break;
 			case RATE: 
 					throttles.put(throttleKey, new RateThrottleDecorator(governorConfig.limit(), governorConfig.period(),
-								governorConfig.unit(), governorConfig.blocking(), scheduler));
+								governorConfig.unit(), governorConfig.blocking()));
 					break;
 			case ALL: //TODO
 					break;
@@ -177,11 +159,6 @@ public abstract class AbstractGovernorAspect {
 
     }
     
-	@PreDestroy
-	public void shutdown() {
-		scheduler.shutdownNow();
-	}
-
     @Pointcut
     public abstract void governorAnnotatedMethod(Governor governorConfig);
 
@@ -24,14 +24,23 @@
 package com.crossbusiness.resiliency.aspect;
 
 import com.crossbusiness.resiliency.annotation.Retry;
+import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.jmx.export.annotation.ManagedAttribute;
 
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
 
 /**
  * RetryOnFailureAspect
@@ -42,6 +51,8 @@ import org.springframework.jmx.export.annotation.ManagedAttribute;
  * retry in such conditions (idempotent operations that don't need to go back to the user for conflict resolution),
  * we'd like to transparently retry the operation to avoid the client seeing a PessimisticLockingFailureException.
  * This is a requirement that clearly cuts across multiple services in the service layer, and hence is ideal for implementing via an aspect.
+ * <p/>
+ * Methods returning a {@link CompletionStage} are retried when the stage fails, without holding a thread during the delay.
  *
  * @author Sumanth Chinthagunta <xmlking@gmail.com>
  */
@@ -54,6 +65,15 @@ public abstract class AbstractRetryAspect {
 
     private int maxRetries = DEFAULT_MAX_RETRIES;
 
+    private final ExceptionClassifier.Cache retryableExceptions = new ExceptionClassifier.Cache();
+
+    private final RetryBudget.Registry retryBudgets = new RetryBudget.Registry();
+
+    // StaticPart does not override equals/hashCode, so lookups are by identity.
+    private final ConcurrentMap<JoinPoint.StaticPart, RetryStatistics> statistics = new ConcurrentHashMap<JoinPoint.StaticPart, RetryStatistics>(16);
+
+    private Executor retryExecutor;
+
     @Around("retryAnnotatedClass(retryConfig)")
     public Object timeoutOnClassLevel(final ProceedingJoinPoint point, Retry retryConfig) throws Throwable {
         return doRetry(point, retryConfig);
@@ -66,28 +86,40 @@ public abstract class AbstractRetryAspect {
 
     // @Around("retryMethodExecution(retryConfig)")
     public Object doRetry(ProceedingJoinPoint pjp, Retry retryConfig) throws Throwable {
-        Class<? extends Exception>[] retryableExceptions = retryConfig.exceptions();
-
         int attempts = retryConfig.attempts();
-        long delay = retryConfig.delay();
         if (!(attempts > 0)) {
             attempts = this.maxRetries;
         }
 
-        log.info("Attempting operation with potential for {} with maximum {} retries", retryableExceptions, attempts);
+        log.info("Attempting operation with potential for {} with maximum {} retries", retryConfig.exceptions(), attempts);
 
 
+        RetryBudget budget = retryBudgets.budgetOf(pjp.getStaticPart(), retryConfig);
+        RetryStatistics retryStatistics = retryStatistics(pjp);
         int numAttempts = 0;
+        long delay = 0;
         do {
             numAttempts++;
             try {
-                return pjp.proceed();
+                long start = System.nanoTime();
+                Object output = pjp.proceed();
+                if (output instanceof CompletionStage) {
+                    // later attempts are scheduled without holding this thread
+                    return CompletionStageRetry.retry(pjp, (CompletionStage<?>) output, retryClassifier(pjp, retryConfig),
+                            numAttempts, attempts, retryConfig, budget, retryStatistics, retryExecutor,
+                            ((MethodSignature) pjp.getSignature()).getReturnType());
+                }
+                retryStatistics.recordSuccess(start);
+                if (budget != null) {
+                    budget.onSuccess();
+                }
+                return output;
             } catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
                 throw ex;
             } catch (Throwable ex) {
                 // if the exception is not what we're looking for, pass it through
-                if (!isRetryableException(ex, retryableExceptions)) throw ex;
+                if (!isRetryableException(pjp, ex, retryConfig)) throw ex;
 
                 // we caught the configured exception, retry unless we've reached the maximum
                 if (numAttempts > attempts) {
@@ -95,6 +127,21 @@ public abstract class AbstractRetryAspect {
                     throw ex;
                 }
 
+                delay = RetryBackoff.delay(retryConfig, numAttempts, delay);
+
+                // don't start an attempt that the deadline of an enclosing @Timeout would cut short anyway
+                if (!retryStatistics.attemptFits(DeadlineContext.current().getDeadline(), retryConfig.unit().toNanos(delay))) {
+                    log.warn("Next attempt cannot finish before the deadline, rethrowing Exception [{}] after {} attempts",
+                            ex, numAttempts);
+                    throw ex;
+                }
+
+                if (budget != null && !budget.tryRetry()) {
+                    log.warn("Retry budget {} spent after {} attempts, rethrowing Exception [{}]",
+                            new Object[]{budget.getName(), numAttempts, ex});
+                    throw ex;
+                }
+
                 log.info("Caught Exception: [{}]. \n\t\t Attempt#: {}, Will retry after {} {}",
                         new Object[]{ex, numAttempts, delay, retryConfig.unit()});
 
@@ -107,6 +154,29 @@ public abstract class AbstractRetryAspect {
         return null;
     }
 
+    /**
+     * Executor that runs the retries of methods returning a CompletionStage, the common ForkJoinPool by default.
+     *
+     * @param retryExecutor executor for asynchronous retries
+     */
+    @Autowired(required=false)
+    @Qualifier("retryExecutor")
+    public void setRetryExecutor(Executor retryExecutor) {
+        this.retryExecutor = retryExecutor;
+    }
+
+    /**
+     * @return retries given up because the next attempt could not finish before the deadline of the caller
+     */
+    @ManagedAttribute(description = "Retries given up because they could not finish before the deadline")
+    public long getRetriesAvoided() {
+        long retriesAvoided = 0;
+        for (RetryStatistics methodStatistics : statistics.values()) {
+            retriesAvoided += methodStatistics.getRetriesAvoided();
+        }
+        return retriesAvoided;
+    }
+
     /**
      * Allow overriding of the default maximum number of retries.
      *
@@ -117,15 +187,29 @@ public abstract class AbstractRetryAspect {
         this.maxRetries = maxRetries;
     }
 
-    static boolean isRetryableException(Throwable ex, Class<? extends Exception>[] retryableExceptions) {
-        boolean isRetryableException = false;
-        for (Class<? extends Exception> exception : retryableExceptions) {
-            if (exception.isInstance(ex)) {
-                isRetryableException = true;
-                break;
+    private boolean isRetryableException(ProceedingJoinPoint pjp, Throwable ex, Retry retryConfig) {
+        return retryClassifier(pjp, retryConfig).matches(ex);
+    }
+
+    private RetryStatistics retryStatistics(ProceedingJoinPoint pjp) {
+        RetryStatistics methodStatistics = statistics.get(pjp.getStaticPart());
+        if (methodStatistics == null) {
+            RetryStatistics created = new RetryStatistics();
+            methodStatistics = statistics.putIfAbsent(pjp.getStaticPart(), created);
+            if (methodStatistics == null) {
+                methodStatistics = created;
             }
         }
-        return isRetryableException;
+        return methodStatistics;
+    }
+
+    private ExceptionClassifier retryClassifier(ProceedingJoinPoint pjp, Retry retryConfig) {
+        ExceptionClassifier classifier = retryableExceptions.get(pjp.getStaticPart(), retryConfig);
+        if (classifier == null) {
+            classifier = retryableExceptions.put(pjp.getStaticPart(),
+                    new ExceptionClassifier(retryConfig, retryConfig.exceptions(), retryConfig.excludeExceptions()));
+        }
+        return classifier;
     }
 
     @Pointcut
@@ -23,8 +23,6 @@
  */
 package com.crossbusiness.resiliency.aspect;
 
-import java.lang.reflect.Method;
-
 import com.crossbusiness.resiliency.annotation.Timeout2;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
@@ -33,64 +31,82 @@ import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.reflect.MethodSignature;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationContext;
 import org.springframework.core.annotation.Order;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.ReflectionUtils;
 
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+
+/**
+ * Abstract aspect that runs selected methods on an executor and stops waiting for them after a timeout.
+ * <p/>
+ * On timeout the call is cancelled, which interrupts the executor thread, and a {@link TimeoutException} is thrown.
+ * A returned {@link CompletionStage} is completed with a {@link TimeoutException} if it does not complete in time.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
 @Aspect
 public abstract class AbstractTimeout2Aspect {
 
     protected final Logger log = LoggerFactory.getLogger(getClass());
 
-	private static class TimeoutThread extends Thread {
-		private boolean completed = false;
-		private ProceedingJoinPoint point;
-		private Throwable throwable;
-		private Object value;
- 
-		public ProceedingJoinPoint getPoint() {
-			return point;
-		}
- 
-		public Throwable getThrowable() {
-			return throwable;
-		}
- 
-		public Object getValue() {
-			return value;
-		}
- 
-		public boolean isCompleted() {
-			return completed;
-		}
- 
-		public void run() {
-			try {
-				setValue(point.proceed());
-			} catch (Throwable t) {
-				setThrowable(t);
-			} finally {
-				setCompleted(true);
-			}
-		}
- 
-		public void setCompleted(boolean completed) {
-			this.completed = completed;
-		}
- 
-		public void setPoint(ProceedingJoinPoint point) {
-			this.point = point;
-		}
- 
-		public void setThrowable(Throwable throwable) {
-			this.throwable = throwable;
-		}
- 
-		public void setValue(Object value) {
-			this.value = value;
-		}
- 
-	}
+    private static final int DEFAULT_POOL_SIZE = 50;
+
+    private final Map<Method, AsyncTaskExecutor> executors = new ConcurrentHashMap<Method, AsyncTaskExecutor>(16);
+
+    @Autowired(required=false)
+    private ApplicationContext context;
+
+    private Executor defaultExecutor;
+
+    private int poolSize = DEFAULT_POOL_SIZE;
+
+    /**
+     * Timer that bounds returned CompletionStages, its thread starts with the first one.
+     */
+    private final TimingWheel timer = new TimingWheel(timerThreadFactory(), 1, TimeUnit.MILLISECONDS, 1024);
 
+    /**
+     * Executor used when {@link Timeout2#executor()} is not set. Without one, a bounded pool of daemon threads is used.
+     */
+    @Autowired(required=false)
+    @Qualifier("timeoutExecutor")
+    public void setExecutor(Executor defaultExecutor) {
+        this.defaultExecutor = defaultExecutor;
+    }
+
+    /**
+     * Allow overriding of the size of the built-in pool, before the first call.
+     * The pool does not queue: while all its threads are busy, including with timed out calls that ignore
+     * interrupts, further calls fail at once with a {@link TimeoutException}.
+     *
+     * @param poolSize maximum number of threads
+     */
+    @ManagedAttribute(description = "Maximum number of threads of the built-in pool", defaultValue = "50")
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
 
     @Around("timeoutAnnotatedClass(timeoutConfig)")
     public Object timeoutOnClassLevel(final ProceedingJoinPoint point,Timeout2 timeoutConfig) throws Throwable {
@@ -104,23 +120,100 @@ public abstract class AbstractTimeout2Aspect {
 
     // @Around("timeoutMethodExecution(timeoutConfig)")
     public Object doTimeout(final ProceedingJoinPoint point,Timeout2 timeoutConfig) throws Throwable {
-        log.debug(point + " -> " + timeoutConfig);
-    	Method method = ((MethodSignature) point.getSignature()).getMethod();
- 
-		TimeoutThread thread = new TimeoutThread();
-		thread.setDaemon(timeoutConfig.daemon());
-		thread.setPoint(point);
-		thread.start();
-		thread.join(timeoutConfig.unit().toMillis(timeoutConfig.value()));
- 
-		if (!thread.isCompleted()) {
-			throw new TimeoutException("Method " + method + " exceeded timeout of " + timeoutConfig.unit().toMillis(timeoutConfig.value()) + " ms");
-		} else if (thread.getThrowable() != null) {
-			throw thread.getThrowable();
-		} else {
-			return thread.getValue();
-		}
-	}
+        log.debug("{} -> {}", point, timeoutConfig);
+        Method method = ((MethodSignature) point.getSignature()).getMethod();
+
+        DeadlineContext deadlineContext = DeadlineContext.current();
+        final long timeoutMs = Math.min(timeoutConfig.unit().toMillis(timeoutConfig.value()),
+                deadlineContext.remaining(TimeUnit.MILLISECONDS));
+        if (timeoutMs <= 0) {
+            throw new TimeoutException("Method " + method + " called after the deadline of its caller");
+        }
+        // the method runs on another thread, take the deadline along
+        final long deadline = deadlineContext.deadlineAfter(timeoutMs, TimeUnit.MILLISECONDS);
+
+        Callable<Object> task = new Callable<Object>() {
+            public Object call() throws Exception {
+                DeadlineContext taskContext = DeadlineContext.current();
+                long previousDeadline = taskContext.set(deadline);
+                try {
+                    return point.proceed();
+                } catch (Throwable ex) {
+                    ReflectionUtils.rethrowException(ex);
+                    return null;
+                } finally {
+                    taskContext.set(previousDeadline);
+                }
+            }
+        };
+        Future<Object> future;
+        try {
+            future = getExecutor(method, timeoutConfig.executor()).submit(task);
+        } catch (RejectedExecutionException ex) {
+            // every thread is busy, maybe with timed out calls that ignore interrupts. waiting could take longer than the timeout
+            throw new TimeoutException("Method " + method + " rejected, no thread free to run it within its timeout of " + timeoutMs + " ms");
+        }
+
+        Object output;
+        try {
+            output = future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            throw new TimeoutException("Method " + method + " exceeded timeout of " + timeoutMs + " ms");
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        } catch (ExecutionException ex) {
+            throw ex.getCause();
+        }
+        if (output instanceof CompletionStage) {
+            // the rest of the work is asynchronous, bound it without holding a thread
+            return CompletionStageTimeout.withTimeout(timer, (CompletionStage<?>) output, method.getReturnType(),
+                    method.toString(), deadline, timeoutMs);
+        }
+        return output;
+    }
+
+    protected AsyncTaskExecutor getExecutor(Method method, String qualifier) {
+        AsyncTaskExecutor executor = this.executors.get(method);
+        if (executor == null) {
+            Executor executorToUse = this.defaultExecutor;
+            if (qualifier != null && !qualifier.isEmpty() && context != null) {
+                try {
+                    executorToUse = context.getBean(qualifier, Executor.class);
+                } catch(NoSuchBeanDefinitionException ex){
+                    log.error("Executor with qualifier: "+qualifier+" Not defined in spring context");
+                }
+            }
+            if (executorToUse == null) {
+                executorToUse = defaultPool();
+            }
+            executor = (executorToUse instanceof AsyncTaskExecutor ?
+                    (AsyncTaskExecutor) executorToUse : new TaskExecutorAdapter(executorToUse));
+            this.executors.put(method, executor);
+        }
+        return executor;
+    }
+
+    private ThreadFactory timerThreadFactory() {
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("sumo-timeout2-timer-");
+        tf.setDaemon(true);
+        tf.setThreadGroupName("resiliency");
+        return tf;
+    }
+
+    private synchronized Executor defaultPool() {
+        if (this.defaultExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("sumo-timeout2-");
+            tf.setDaemon(true);
+            tf.setThreadGroupName("resiliency");
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), tf);
+            pool.allowCoreThreadTimeOut(true);
+            this.defaultExecutor = pool;
+        }
+        return this.defaultExecutor;
+    }
 
     @Pointcut
     public abstract void timeoutAnnotatedMethod(Timeout2 timeoutConfig);
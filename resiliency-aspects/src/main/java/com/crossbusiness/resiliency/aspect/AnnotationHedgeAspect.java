@@ -0,0 +1,54 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import com.crossbusiness.resiliency.annotation.Hedge;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.Pointcut;
+import org.springframework.core.annotation.Order;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hedges methods and types annotated with @{@link Hedge}.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ */
+@Component
+@Order(118)
+@ManagedResource
+@Aspect
+public class AnnotationHedgeAspect extends AbstractHedgeAspect {
+
+    @Pointcut("execution(@com.crossbusiness.resiliency.annotation.Hedge * *(..)) && @annotation(hedgeConfig)")
+    public void hedgeAnnotatedMethod(Hedge hedgeConfig) {}
+
+    @Pointcut("execution(public * ((@com.crossbusiness.resiliency.annotation.Hedge *)+).*(..)) " +
+            "&& within(@com.crossbusiness.resiliency.annotation.Hedge *) && @target(hedgeConfig) " +
+            "&& !com.crossbusiness.resiliency.aspect.SystemArchitecture.groovyMOPMethods()")
+    public void hedgeAnnotatedClass(Hedge hedgeConfig) {}
+
+    @Pointcut("(hedgeAnnotatedMethod(hedgeConfig) || hedgeAnnotatedClass(hedgeConfig))")
+    public void hedgeMethodExecution(Hedge hedgeConfig) { }
+}
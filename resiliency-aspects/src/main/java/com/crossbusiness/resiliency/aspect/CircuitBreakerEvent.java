@@ -0,0 +1,117 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+
+/**
+ * A call outcome or state transition of a circuit breaker.
+ * <p/>
+ * Instances are preallocated slots of the {@link CircuitBreakerEventPublisher} ring buffer, filled in place by the
+ * publishing thread and handed to the consumers afterwards. Only valid during {@link CircuitBreakerEventConsumer#onEvent}.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class CircuitBreakerEvent {
+
+        private static final AtomicLongFieldUpdater<CircuitBreakerEvent> SEQUENCE = AtomicLongFieldUpdater.newUpdater(CircuitBreakerEvent.class, "sequence");
+
+        // sequence of the event currently in the slot, written last by the publisher
+        private volatile long sequence = -1;
+
+        private CircuitBreakerEventType type;
+
+        private String name;
+
+        private CircuitBreakerStatus fromStatus;
+
+        private CircuitBreakerStatus toStatus;
+
+        private long durationNanos;
+
+        private long timestamp;
+
+        void fill(CircuitBreakerEventType type, String name, CircuitBreakerStatus fromStatus, CircuitBreakerStatus toStatus, long durationNanos, long timestamp) {
+                this.type = type;
+                this.name = name;
+                this.fromStatus = fromStatus;
+                this.toStatus = toStatus;
+                this.durationNanos = durationNanos;
+                this.timestamp = timestamp;
+        }
+
+        void publish(long sequence) {
+                SEQUENCE.lazySet(this, sequence);
+        }
+
+        long getSequence() {
+                return sequence;
+        }
+
+        public CircuitBreakerEventType getType() {
+                return type;
+        }
+
+        /**
+         * @return the method key of the circuit breaker.
+         */
+        public String getName() {
+                return name;
+        }
+
+        /**
+         * @return status before a STATE_TRANSITION, otherwise null.
+         */
+        public CircuitBreakerStatus getFromStatus() {
+                return fromStatus;
+        }
+
+        /**
+         * @return status after a STATE_TRANSITION, otherwise null.
+         */
+        public CircuitBreakerStatus getToStatus() {
+                return toStatus;
+        }
+
+        /**
+         * @return call latency in nanoseconds for SUCCESS and FAILURE, otherwise 0.
+         */
+        public long getDurationNanos() {
+                return durationNanos;
+        }
+
+        public long getTimestamp() {
+                return timestamp;
+        }
+
+        @Override
+        public String toString() {
+                if (type == CircuitBreakerEventType.STATE_TRANSITION) {
+                        return type + " " + name + " " + fromStatus + " -> " + toStatus;
+                }
+                return type + " " + name + (durationNanos > 0 ? " " + durationNanos + "ns" : "");
+        }
+}
@@ -0,0 +1,188 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+
+/**
+ * Publishes {@link CircuitBreakerEvent}s to pluggable {@link CircuitBreakerEventConsumer}s through a preallocated,
+ * lock-free multi-producer ring buffer.
+ * <p/>
+ * Publishing claims a slot with a compare-and-set on the claim sequence, fills the preallocated event in place and
+ * marks it published, so a guarded call never blocks or allocates. When the consumers fall behind and the buffer is
+ * full the event is dropped and counted instead. A single daemon thread hands the events to the consumers in order.
+ * Nothing is published and no thread is started until the first consumer is added. Once the last consumer is
+ * removed the dispatcher drains the buffer and exits, the next consumer added starts a new one.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public class CircuitBreakerEventPublisher {
+
+        private static final Logger logger = LoggerFactory.getLogger(CircuitBreakerEventPublisher.class);
+
+        // how long the dispatcher sleeps when the buffer is empty
+        private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final CircuitBreakerEvent[] ring;
+
+        private final int mask;
+
+        // next sequence a publisher claims
+        private final AtomicLong claimed = new AtomicLong();
+
+        // next sequence the dispatcher hands out, every slot below it can be reused
+        private volatile long consumed;
+
+        private final LongAdder dropped = new LongAdder();
+
+        private final List<CircuitBreakerEventConsumer> consumers = new CopyOnWriteArrayList<CircuitBreakerEventConsumer>();
+
+        private volatile boolean active;
+
+        // guarded by this, null while no dispatcher runs
+        private Thread dispatcher;
+
+        /**
+         * @param bufferSize number of preallocated events, rounded up to a power of two
+         */
+        public CircuitBreakerEventPublisher(int bufferSize) {
+                int size = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+                this.ring = new CircuitBreakerEvent[size];
+                for (int i = 0; i < size; i++) {
+                        ring[i] = new CircuitBreakerEvent();
+                }
+                this.mask = size - 1;
+        }
+
+        /**
+         * publishes an event unless there is no consumer or the buffer is full.
+         *
+         * @return true if the event was published
+         */
+        boolean publish(CircuitBreakerEventType type, String name, CircuitBreakerStatus fromStatus, CircuitBreakerStatus toStatus, long durationNanos) {
+                if (!active) {
+                        return false;
+                }
+                long sequence;
+                do {
+                        sequence = claimed.get();
+                        if (sequence - consumed >= ring.length) {
+                                dropped.increment();
+                                return false;
+                        }
+                } while (!claimed.compareAndSet(sequence, sequence + 1));
+                CircuitBreakerEvent event = ring[(int) (sequence & mask)];
+                event.fill(type, name, fromStatus, toStatus, durationNanos, System.currentTimeMillis());
+                event.publish(sequence);
+                return true;
+        }
+
+        public synchronized void addConsumer(CircuitBreakerEventConsumer consumer) {
+                consumers.add(consumer);
+                active = true;
+                if (dispatcher == null) {
+                        CustomizableThreadFactory tf = new CustomizableThreadFactory("sumo-circuitbreaker-events-");
+                        tf.setDaemon(true);
+                        tf.setThreadGroupName("resiliency");
+                        dispatcher = tf.newThread(new Runnable() {
+                                @Override
+                                public void run() {
+                                        dispatch();
+                                }
+                        });
+                        dispatcher.start();
+                }
+        }
+
+        public synchronized void removeConsumer(CircuitBreakerEventConsumer consumer) {
+                consumers.remove(consumer);
+                active = !consumers.isEmpty();
+        }
+
+        /**
+         * @return events dropped because the consumers did not keep up.
+         */
+        public long getDroppedEvents() {
+                return dropped.sum();
+        }
+
+        public int getBufferSize() {
+                return ring.length;
+        }
+
+        private void dispatch() {
+                long next = consumed;
+                try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                                CircuitBreakerEvent event = ring[(int) (next & mask)];
+                                if (event.getSequence() != next) {
+                                        if (!active && stopIfInactive()) {
+                                                return;
+                                        }
+                                        LockSupport.parkNanos(IDLE_NANOS);
+                                        continue;
+                                }
+                                for (CircuitBreakerEventConsumer consumer : consumers) {
+                                        try {
+                                                consumer.onEvent(event);
+                                        } catch (RuntimeException e) {
+                                                logger.warn("circuit breaker event consumer {} failed on {}", consumer, event, e);
+                                        }
+                                }
+                                consumed = ++next;
+                        }
+                } finally {
+                        synchronized (this) {
+                                // interrupted, let the next consumer added start a new dispatcher
+                                if (dispatcher == Thread.currentThread()) {
+                                        dispatcher = null;
+                                }
+                        }
+                }
+        }
+
+        /**
+         * decided under the same lock addConsumer starts a dispatcher with, so one always runs while there are consumers.
+         *
+         * @return true if the dispatcher is to exit, since the last consumer was removed.
+         */
+        private synchronized boolean stopIfInactive() {
+                if (active) {
+                        return false;
+                }
+                dispatcher = null;
+                return true;
+        }
+}
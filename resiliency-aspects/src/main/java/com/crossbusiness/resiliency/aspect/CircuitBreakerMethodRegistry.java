@@ -23,91 +23,230 @@
  */
 package com.crossbusiness.resiliency.aspect;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import com.crossbusiness.resiliency.annotation.CircuitBreaker;
 
+import org.aspectj.lang.JoinPoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 
 /**
+ * Registry of circuit breakers, one {@link CircuitBreakerRegistryEntry} per method.
+ * <p/>
+ * The registry holds no lock of its own: every entry drives its own state with CAS transitions,
+ * so a failing method never slows down failure recording or status checks of other breakers.
+ * <p/>
+ * A guarded call keeps no per thread bookkeeping in the registry. Instead
+ * {@link #getCallTokenWithHalfOpenExclusiveLockTry(CircuitBreakerRegistryEntry)} hands out a call token, a plain
+ * <code>long</code> packing the {@link CircuitBreakerStatus} and the CLOSED (or half open trial)
+ * cycle the call started in. The caller keeps it in a local variable and passes it back when
+ * reporting the outcome of the call.
+ * <p/>
+ * Aspects resolve the entry once per join point with {@link #registeredMehtodIfnecessary(JoinPoint.StaticPart, CircuitBreaker)}
+ * and keep working on that handle, so a guarded call costs one identity lookup and never builds the method key.
+ * <p/>
+ * With the <code>resiliency.circuitBreaker.snapshotFile</code> system property set (or after
+ * {@link #enableSnapshots(File, long)}) the state of all breakers is saved periodically
+ * (<code>resiliency.circuitBreaker.snapshotPeriodMs</code>, default 5000) and on shutdown, and restored
+ * when a breaker is registered again after a restart.
+ * <p/>
+ * With <code>resiliency.circuitBreaker.sharedStateFile</code> (or {@link #enableSharedState(File, int)}) the breakers
+ * keep their state in a memory-mapped file shared by all processes of the host, see {@link CircuitBreakerSharedMemory}.
+ * <p/>
+ * Call outcomes and state transitions are published to the consumers of {@link #getEventPublisher()}.
+ *
  * @author Sumanth Chinthagunta <xmlking@gmail.com>
  *
  */
 public class CircuitBreakerMethodRegistry {
 
-        private final Logger logger = LoggerFactory.getLogger(this.getClass());
+        public static final String SNAPSHOT_FILE_PROPERTY = "resiliency.circuitBreaker.snapshotFile";
+
+        public static final String SNAPSHOT_PERIOD_PROPERTY = "resiliency.circuitBreaker.snapshotPeriodMs";
 
-        private ReentrantLock exclusiveHalfOpenLock = new ReentrantLock();
+        public static final String SHARED_STATE_FILE_PROPERTY = "resiliency.circuitBreaker.sharedStateFile";
 
-        // needed for checking the CLOSED cycle
-        private ThreadLocal<Map<String, Long>> threadLocalMap = new ThreadLocal<Map<String, Long>>();
+        public static final String SHARED_STATE_SLOTS_PROPERTY = "resiliency.circuitBreaker.sharedStateSlots";
+
+        public static final String EVENT_BUFFER_SIZE_PROPERTY = "resiliency.circuitBreaker.eventBufferSize";
+
+        private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
         // map with global state of CircuitBreaker entries
-        private final Map<String, CircuitBreakerRegistryEntry> globalMap = new ConcurrentHashMap<String, CircuitBreakerRegistryEntry>();
+        private final ConcurrentMap<String, CircuitBreakerRegistryEntry> globalMap = new ConcurrentHashMap<String, CircuitBreakerRegistryEntry>();
+
+        // resolved entries per join point. StaticPart does not override equals/hashCode, so lookups are by identity.
+        private final ConcurrentMap<JoinPoint.StaticPart, CircuitBreakerRegistryEntry> joinPointMap = new ConcurrentHashMap<JoinPoint.StaticPart, CircuitBreakerRegistryEntry>();
+
+        // null unless snapshots are enabled
+        private volatile CircuitBreakerSnapshotStore snapshotStore;
+
+        private ScheduledExecutorService snapshotWriter;
+
+        // null unless the state is shared with co-located processes
+        private volatile CircuitBreakerSharedMemory sharedMemory;
+
+        private final CircuitBreakerEventPublisher eventPublisher = new CircuitBreakerEventPublisher(Integer.getInteger(EVENT_BUFFER_SIZE_PROPERTY, 1024));
+
+        public CircuitBreakerMethodRegistry() {
+                String sharedStateFile = System.getProperty(SHARED_STATE_FILE_PROPERTY);
+                if (sharedStateFile != null && !sharedStateFile.isEmpty()) {
+                        try {
+                                enableSharedState(new File(sharedStateFile), Integer.getInteger(SHARED_STATE_SLOTS_PROPERTY, 1024));
+                        } catch (IOException e) {
+                                logger.warn("circuit breaker state is not shared, can not map {}", sharedStateFile, e);
+                        }
+                }
+                String snapshotFile = System.getProperty(SNAPSHOT_FILE_PROPERTY);
+                if (snapshotFile != null && !snapshotFile.isEmpty()) {
+                        enableSnapshots(new File(snapshotFile), Long.getLong(SNAPSHOT_PERIOD_PROPERTY, 5000l));
+                }
+        }
+
+        /**
+         * loads the breaker state saved in the given file and keeps saving the state of all breakers
+         * every periodMs and on JVM shutdown. Breakers registered from now on start with their saved state.
+         *
+         * @param file snapshot file, created if missing
+         * @param periodMs time between two snapshots
+         * @return the snapshot store
+         */
+        public synchronized CircuitBreakerSnapshotStore enableSnapshots(File file, long periodMs) {
+                if (snapshotStore != null) {
+                        throw new IllegalStateException("circuit breaker snapshots already go to " + snapshotStore.getFile());
+                }
+                CircuitBreakerSnapshotStore store = new CircuitBreakerSnapshotStore(file);
+                logger.info("loaded {} circuit breakers from snapshot {}", store.load(), file);
+                snapshotStore = store;
+
+                CustomizableThreadFactory tf = new CustomizableThreadFactory("sumo-circuitbreaker-snapshot-");
+                tf.setDaemon(true);
+                tf.setThreadGroupName("resiliency");
+                snapshotWriter = Executors.newSingleThreadScheduledExecutor(tf);
+                snapshotWriter.scheduleWithFixedDelay(new Runnable() {
+                        @Override
+                        public void run() {
+                                writeSnapshot();
+                        }
+                }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                                writeSnapshot();
+                        }
+                }, "sumo-circuitbreaker-snapshot-shutdown"));
+                return store;
+        }
+
+        /**
+         * keeps the state of breakers registered from now on in the given memory-mapped file, shared with every
+         * process of the host using the same file. Those processes trip and recover their breakers together.
+         *
+         * @param file shared state file, created if missing
+         * @param slots number of breakers the file has room for, if it is created
+         * @return the shared memory
+         */
+        public synchronized CircuitBreakerSharedMemory enableSharedState(File file, int slots) throws IOException {
+                if (sharedMemory != null) {
+                        throw new IllegalStateException("circuit breaker state already shared through " + sharedMemory.getFile());
+                }
+                sharedMemory = new CircuitBreakerSharedMemory(file, slots);
+                logger.info("sharing circuit breaker state through {} ({} slots)", file, sharedMemory.getSlots());
+                return sharedMemory;
+        }
+
+        /**
+         * saves the state of all breakers now, if snapshots are enabled.
+         */
+        public void writeSnapshot() {
+                CircuitBreakerSnapshotStore store = snapshotStore;
+                if (store == null) {
+                        return;
+                }
+                try {
+                        store.write(globalMap.values());
+                } catch (IOException e) {
+                        logger.warn("could not write circuit breaker snapshot {}", store.getFile(), e);
+                }
+        }
 
         // this method is call before every CircuitBreaker annotated method is
         // called.
-        public void registeredMehtodIfnecessary(String method, CircuitBreaker annotation) {
-                Map<String, Long> localMap = threadLocalMap.get();
-                if (localMap == null) {
-                        localMap = new HashMap<String, Long>();
-                        threadLocalMap.set(localMap);
+        public CircuitBreakerRegistryEntry registeredMehtodIfnecessary(JoinPoint.StaticPart joinPoint, CircuitBreaker annotation) {
+                CircuitBreakerRegistryEntry entry = joinPointMap.get(joinPoint);
+                if (entry == null) {
+                        // first call through this join point: resolve the entry by its method key once
+                        entry = registeredMehtodIfnecessary(joinPoint.getSignature().toLongString(), annotation);
+                        joinPointMap.putIfAbsent(joinPoint, entry);
                 }
-                // this shall be null - recursion is not supported
-                assert threadLocalMap.get().get(method) == null;
+                return entry;
+        }
 
+        public CircuitBreakerRegistryEntry registeredMehtodIfnecessary(String method, CircuitBreaker annotation) {
                 CircuitBreakerRegistryEntry entry = globalMap.get(method);
                 if (entry == null) {
                         entry = createCircuitBreakerRegistryEntry(method, annotation);
-                        globalMap.put(method, entry);
+                        CircuitBreakerRegistryEntry existing = globalMap.putIfAbsent(method, entry);
+                        if (existing != null) {
+                                entry = existing;
+                        }
                 }
-                localMap.put(method, Long.valueOf(entry.getClosedCycleCounter()));
-
+                return entry;
         }
 
         /**
-         * method changes the status from HALF_OPEN to CLOSED then unlock the
-         * exclusiveHalfOpenLock. the caller must make sure that he has the half
-         * open exclusive lock before invoking this method.
+         * decodes the {@link CircuitBreakerStatus} of a call token.
          *
-         * @param method
+         * @param token call token returned by {@link #getCallTokenWithHalfOpenExclusiveLockTry(CircuitBreakerRegistryEntry)}
+         * @return
          */
-        public void closeAndUnlock(String method) {
-                assert exclusiveHalfOpenLock.isHeldByCurrentThread();
-                CircuitBreakerRegistryEntry entry = globalMap.get(method);
-                assert entry.getStatus().equals(CircuitBreakerStatus.HALF_OPEN);
-                entry.getFailures().clear();
-                entry.setStatus(CircuitBreakerStatus.CLOSED);
-                entry.increaseClosedCycleCounter();
-
-                exclusiveHalfOpenLock.unlock();
+        public static CircuitBreakerStatus statusOf(long token) {
+                return CircuitBreakerRegistryEntry.statusOf(token);
         }
 
         /**
-         * method changes the status from HALF_OPEN to OPEN then unlock the
-         * exclusiveHalfOpenLock. the caller must make sure that he has the half
-         * open exclusive lock before invoking this method.
+         * method reports a successful half open trial call. The status changes
+         * from HALF_OPEN to CLOSED once enough trial calls succeeded. A trial call
+         * slower than slowCallDurationThresholdMs counts as failed. the caller must
+         * make sure that it got HALF_OPEN_EXCLUSIVE before invoking this method.
          *
-         * @param method
+         * @param entry
+         * @param token call token of the trial call
+         * @param durationNanos call latency measured with {@link System#nanoTime()}
+         * @return the status after the trial call
          */
+        public CircuitBreakerStatus halfOpenTrialSucceeded(CircuitBreakerRegistryEntry entry, long token, long durationNanos) {
+                boolean success = !entry.isSlowCall(durationNanos);
+                eventPublisher.publish(success ? CircuitBreakerEventType.SUCCESS : CircuitBreakerEventType.FAILURE, entry.getName(), null, null, durationNanos);
+                return entry.recordTrial(CircuitBreakerRegistryEntry.closedCycleOf(token), success, System.currentTimeMillis());
+        }
 
-        public void keepOpenAndUnlock(String method) {
-                assert exclusiveHalfOpenLock.isHeldByCurrentThread();
-                CircuitBreakerRegistryEntry entry = globalMap.get(method);
-                assert entry.getStatus().equals(CircuitBreakerStatus.HALF_OPEN);
-                entry.getFailures().clear();
-                entry.setStatus(CircuitBreakerStatus.OPEN);
-                entry.setLastOpenedTime(System.currentTimeMillis());
-
-                exclusiveHalfOpenLock.unlock();
+        /**
+         * method reports a failed half open trial call. The status changes from
+         * HALF_OPEN to OPEN once the required ratio of successful trial calls can
+         * not be reached anymore. the caller must make sure that it got
+         * HALF_OPEN_EXCLUSIVE before invoking this method.
+         *
+         * @param entry
+         * @param token call token of the trial call
+         * @return the status after the trial call
+         */
+        public CircuitBreakerStatus halfOpenTrialFailed(CircuitBreakerRegistryEntry entry, long token) {
+                eventPublisher.publish(CircuitBreakerEventType.FAILURE, entry.getName(), null, null, 0);
+                return entry.recordTrial(CircuitBreakerRegistryEntry.closedCycleOf(token), false, System.currentTimeMillis());
         }
 
         /**
@@ -115,45 +254,59 @@ public class CircuitBreakerMethodRegistry {
          * invocation is the same as at the end of the invocation, otherwise returns
          * false.
          * 
-         * @param method
+         * @param entry
+         * @param token call token taken at the beginning of the method invocation
          * @return
          */
-        public boolean sameClosedCycleInLocalAndGlobaleContext(String method) {
-                if (threadLocalMap.get().get(method) == globalMap.get(method).getClosedCycleCounter()) {
+        public boolean sameClosedCycleInLocalAndGlobaleContext(CircuitBreakerRegistryEntry entry, long token) {
+                if (CircuitBreakerRegistryEntry.closedCycleOf(token) == entry.getClosedCycleCounter()) {
                         return true;
                 }
                 return false;
         }
 
         /**
-         * method returns the {@link CircuitBreakerStatus} and tries to get the
-         * exclusive lock for the {@link CircuitBreakerStatus}.HALF_OPEN status in
-         * case the condition for the half open status is statisfied. If the lock
-         * succeed it saves HALF_OPEN state into the registry and returns
-         * HALF_OPEN_EXCLUSIVE to signal to the caller, that the current thread got
-         * the exclusive lock. It returns {@link CircuitBreakerStatus}.
+         * method returns a call token carrying the {@link CircuitBreakerStatus} and
+         * tries to get one of the trial permits for the
+         * {@link CircuitBreakerStatus}.HALF_OPEN status in case the condition for
+         * the half open status is statisfied. If it gets a permit the token carries
+         * HALF_OPEN_EXCLUSIVE to signal to the caller, that the current thread owns
+         * a trial call. Decode the status with {@link #statusOf(long)}.
          * 
-         * Method may returns also one of the status CLOSED, OPEN or HALF_OPEN.
-         * HALF_OPEN is returned only if one of the concurrent threads has already
-         * the exclusive lock.
+         * The token may carry also one of the status CLOSED, OPEN or HALF_OPEN.
+         * HALF_OPEN is returned only if concurrent threads already own all of the
+         * permittedNumberOfCallsInHalfOpenState trial calls.
          * 
          * 
-         * @param method
-         * @return
+         * @param entry
+         * @return call token to pass back when reporting the outcome of the call
          */
-        public CircuitBreakerStatus getStatusWithHalfOpenExclusiveLockTry(String method) {
-                CircuitBreakerRegistryEntry entry = globalMap.get(method);
-                if (entry.getStatus().equals(CircuitBreakerStatus.OPEN)
-                        && System.currentTimeMillis() - entry.getLastOpenedTime() >= entry.getRetryAfterMs()) {
-                        // condition for half open is statisfied, try to get the halfopene
-                        // exclusive lock.
-                        if (exclusiveHalfOpenLock.tryLock()) { //NOPMD
-                                // the lock will be release in the cleanUp method.
-                                entry.setStatus(CircuitBreakerStatus.HALF_OPEN);
-                                return CircuitBreakerStatus.HALF_OPEN_EXCLUSIVE;
-                        }
+        public long getCallTokenWithHalfOpenExclusiveLockTry(CircuitBreakerRegistryEntry entry) {
+                long state = entry.getState();
+                if (CircuitBreakerRegistryEntry.statusOf(state) == CircuitBreakerStatus.CLOSED) {
+                        // a CLOSED state word carries no trial counters, so it is a valid token as is
+                        return state;
                 }
-                return entry.getStatus();
+                long trialCycle = entry.tryAcquireTrialPermit(System.currentTimeMillis());
+                if (trialCycle >= 0) {
+                        // the token remembers the half open cycle the trial call belongs to
+                        return CircuitBreakerRegistryEntry.encode(CircuitBreakerStatus.HALF_OPEN_EXCLUSIVE, trialCycle);
+                }
+                state = entry.getState();
+                return CircuitBreakerRegistryEntry.encode(CircuitBreakerRegistryEntry.statusOf(state), CircuitBreakerRegistryEntry.closedCycleOf(state));
+        }
+
+        /**
+         * method reports a call rejected because the circuit is OPEN or all half open trial calls are taken.
+         *
+         * @param entry
+         */
+        public void callNotPermitted(CircuitBreakerRegistryEntry entry) {
+                eventPublisher.publish(CircuitBreakerEventType.NOT_PERMITTED, entry.getName(), null, null, 0);
+        }
+
+        public CircuitBreakerEventPublisher getEventPublisher() {
+                return eventPublisher;
         }
 
         private CircuitBreakerRegistryEntry createCircuitBreakerRegistryEntry(String method, CircuitBreaker circuitBreaker) {
@@ -167,7 +320,49 @@ public class CircuitBreakerMethodRegistry {
                         faultIndications = Collections.emptyList();
                 }
 
-                return new CircuitBreakerRegistryEntry(method, failureThreshold, failureThresholdTimeFrameMs, retryAfterMs, faultIndications);
+                CircuitBreakerSlidingWindow slidingWindow = null;
+                if (circuitBreaker.failureRateThreshold() > 0 || circuitBreaker.slowCallDurationThresholdMs() > 0) {
+                        slidingWindow = new CircuitBreakerSlidingWindow(failureThresholdTimeFrameMs, circuitBreaker.slidingWindowBuckets(),
+                                circuitBreaker.minimumNumberOfCalls(), circuitBreaker.failureRateThreshold(),
+                                circuitBreaker.slowCallDurationThresholdMs(), circuitBreaker.slowCallRateThreshold());
+                }
+
+                CircuitBreakerSharedMemory memory = sharedMemory;
+                CircuitBreakerState state = memory != null ? memory.stateFor(method) : null;
+                if (state == null) {
+                        state = new CircuitBreakerState();
+                }
+
+                CircuitBreakerRegistryEntry entry = new CircuitBreakerRegistryEntry(method, failureThreshold, failureThresholdTimeFrameMs, retryAfterMs, faultIndications, slidingWindow,
+                        circuitBreaker.permittedNumberOfCallsInHalfOpenState(), circuitBreaker.halfOpenSuccessRateThreshold(),
+                        circuitBreaker.retryAfterMultiplier(), circuitBreaker.maxRetryAfterMs(), circuitBreaker.retryAfterJitter(),
+                        Arrays.<Class<? extends Throwable>>asList(circuitBreaker.excludeExceptions()), state);
+                entry.setEventPublisher(eventPublisher);
+                CircuitBreakerSnapshotStore store = snapshotStore;
+                if (store != null) {
+                        // warm restart: the entry is not published yet, so it starts with the saved state
+                        store.restore(entry);
+                }
+                return entry;
+        }
+
+        /**
+         * method adds a successful call for the given method name. Only counted
+         * by circuit breakers in failure rate or slow call mode, which may open the
+         * circuit if too many calls were slow.
+         *
+         * @param entry
+         * @param token call token taken at the beginning of the method invocation
+         * @param durationNanos call latency measured with {@link System#nanoTime()}
+         * @return true if status is changed from CLOSED to OPEN otherwise false.
+         */
+        public boolean addSuccess(CircuitBreakerRegistryEntry entry, long token, long durationNanos) {
+                eventPublisher.publish(CircuitBreakerEventType.SUCCESS, entry.getName(), null, null, durationNanos);
+                long now = System.currentTimeMillis();
+                if (entry.addSuccess(now, durationNanos)) {
+                        return entry.tryOpen(CircuitBreakerRegistryEntry.closedCycleOf(token), now);
+                }
+                return false;
         }
 
         /**
@@ -175,40 +370,21 @@ public class CircuitBreakerMethodRegistry {
          * threshold is achieved, in case of set status to OPEN and return true,
          * otherwise return false;
          * 
-         * @param method
+         * @param entry
+         * @param token call token taken at the beginning of the method invocation
+         * @param durationNanos call latency measured with {@link System#nanoTime()}
          * @return true if status is changed from CLOSED to OPEN otherwise false.
          */
-        public synchronized boolean addFailureAndOpenCircuitIfThresholdAchived(String method) {
-                CircuitBreakerRegistryEntry entry = globalMap.get(method);
-                if (entry.getFailures().size() == entry.getFailureThreshold()) {
-                        entry.getFailures().remove(0);
-                }
+        public boolean addFailureAndOpenCircuitIfThresholdAchived(CircuitBreakerRegistryEntry entry, long token, long durationNanos) {
+                eventPublisher.publish(CircuitBreakerEventType.FAILURE, entry.getName(), null, null, durationNanos);
                 long now = System.currentTimeMillis();
-                entry.getFailures().add(Long.valueOf(now));
-                if (!entry.getStatus().equals(CircuitBreakerStatus.OPEN) && entry.getFailures().size() == entry.getFailureThreshold()
-                                && now - entry.getFailures().get(0) <= entry.getFailureThresholdTimeFrameMs()) {
-                        // open condition is full filled
-                        entry.setStatus(CircuitBreakerStatus.OPEN);
-                        entry.setLastOpenedTime(now);
-                        entry.getFailures().clear();
-                        return true;
+                if (entry.addFailure(now, durationNanos)) {
+                        // open condition is full filled, but only for the closed cycle the call started in
+                        return entry.tryOpen(CircuitBreakerRegistryEntry.closedCycleOf(token), now);
                 }
                 return false;
         }
 
-        public void cleanUp(String method) {
-                // a Lock can be hold multiple times in a thread that's why we use an while loop here.
-                while (exclusiveHalfOpenLock.isHeldByCurrentThread()){
-                        exclusiveHalfOpenLock.unlock();
-                        logger.error("exclusiveHalfOpenLock was not properly unlocked");
-                }
-                threadLocalMap.get().remove(method);
-        }
-
-        public List<Class<? extends Throwable>> getfailureIndications(String method) {
-                return globalMap.get(method).getFailureIndications();
-        }
-
         // needed only for unit tests
         CircuitBreakerRegistryEntry getEntry(String method) {
                 return globalMap.get(method);
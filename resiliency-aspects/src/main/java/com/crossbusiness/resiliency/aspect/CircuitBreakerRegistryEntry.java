@@ -24,15 +24,61 @@
 package com.crossbusiness.resiliency.aspect;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 
 /**
+ * Per-method circuit breaker state.
+ * <p/>
+ * Status, cycle counter and the HALF_OPEN trial counters are packed into a single long held by {@link CircuitBreakerState} and
+ * every transition (CLOSED -> OPEN -> HALF_OPEN -> CLOSED|OPEN) as well as handing out a trial permit is a
+ * compare-and-set on that word, together with the times of its OPEN or HALF_OPEN period, so breakers never share a
+ * lock and checking a CLOSED circuit on the heap costs one volatile read.
+ * <pre>
+ *   63            32 31       22 21       12 11        2 1      0
+ *  +----------------+-----------+-----------+-----------+--------+
+ *  |     cycle      | failures  | successes |  permits  | status |
+ *  +----------------+-----------+-----------+-----------+--------+
+ * </pre>
+ * The cycle advances whenever a new CLOSED or HALF_OPEN cycle starts. The trial counters are only used while HALF_OPEN.
+ * <p/>
+ * The wait between OPEN and HALF_OPEN starts at retryAfterMs and grows by retryAfterMultiplier (up to maxRetryAfterMs,
+ * randomized by retryAfterJitter) with every failed trial in a row. Closing the circuit resets it.
+ * <p/>
+ * With a shared {@link CircuitBreakerState} the state word, the OPEN period and the failure count live in
+ * {@link CircuitBreakerSharedMemory}, so breakers of the same method in co-located processes trip and recover together.
+ * Checking a CLOSED circuit then costs a volatile read of a copy of the slot and a plain read of its sequence number.
+ *
  * @author Sumanth Chinthagunta <xmlking@gmail.com>
  *
  */
 public class CircuitBreakerRegistryEntry {
 
+        private static final Logger logger = LoggerFactory.getLogger(CircuitBreakerRegistryEntry.class);
+
+        private static final long STATUS_MASK = 0x3L;
+
+        private static final int TRIAL_COUNTER_BITS = 10;
+
+        private static final long TRIAL_COUNTER_MASK = (1L << TRIAL_COUNTER_BITS) - 1;
+
+        private static final int PERMITS_SHIFT = 2;
+
+        private static final int SUCCESSES_SHIFT = PERMITS_SHIFT + TRIAL_COUNTER_BITS;
+
+        private static final int FAILURES_SHIFT = SUCCESSES_SHIFT + TRIAL_COUNTER_BITS;
+
+        private static final int CYCLE_SHIFT = 32;
+
+        static final int MAX_PERMITTED_CALLS_IN_HALF_OPEN_STATE = (int) TRIAL_COUNTER_MASK;
+
+        private static final CircuitBreakerStatus[] STATUSES = CircuitBreakerStatus.values();
+
         private final String name;
 
         private final int failureThreshold;
@@ -43,40 +89,370 @@ public class CircuitBreakerRegistryEntry {
         
         private final List<Class<? extends Throwable>> failureIndications;
 
-        private CircuitBreakerStatus status;
+        // failureIndications minus the excluded exceptions, with the verdict cached per exception class
+        private final ExceptionClassifier failureClassifier;
+
+        private final int permittedNumberOfCallsInHalfOpenState;
+
+        private final int halfOpenSuccessRateThreshold;
+
+        private final double retryAfterMultiplier;
 
-        private ArrayList<Long> failures;
+        private final long maxRetryAfterMs;
 
-        private long lastOpenedTime;
+        private final double retryAfterJitter;
 
-        // counter for the closed cycles. needed to detect if the failure corresponds to the current closed cycle or this failure is a result of 
+        // counter for the cycles is kept in the state word. needed to detect if the failure corresponds to the current closed cycle or this failure is a result of
         // a long running method started in previous closed cycle.
-        private long closedCycleCounter = 0;
+        private final CircuitBreakerState state;
+
+        // ring buffer of the last failureThreshold failure times, guarded by itself.
+        private final long[] failures;
+
+        // slot the next failure is written to. once the buffer is full it is also the oldest failure.
+        private int failuresHead;
+
+        private int failuresCount;
+
+        // failure rate and slow call modes only, null when the circuit opens on failureThreshold failures alone.
+        private final CircuitBreakerSlidingWindow slidingWindow;
+
+        // set by the registry before the entry is published, null if nobody listens
+        private CircuitBreakerEventPublisher eventPublisher;
 
         public CircuitBreakerRegistryEntry(String name, int failureThreshold, long failureThresholdTimeFrameMs, long retryAfterMs, List<Class<? extends Throwable>> failureIndications) {
+                this(name, failureThreshold, failureThresholdTimeFrameMs, retryAfterMs, failureIndications, null);
+        }
+
+        public CircuitBreakerRegistryEntry(String name, int failureThreshold, long failureThresholdTimeFrameMs, long retryAfterMs, List<Class<? extends Throwable>> failureIndications,
+                                           CircuitBreakerSlidingWindow slidingWindow) {
+                this(name, failureThreshold, failureThresholdTimeFrameMs, retryAfterMs, failureIndications, slidingWindow, 1, 100);
+        }
+
+        public CircuitBreakerRegistryEntry(String name, int failureThreshold, long failureThresholdTimeFrameMs, long retryAfterMs, List<Class<? extends Throwable>> failureIndications,
+                                           CircuitBreakerSlidingWindow slidingWindow, int permittedNumberOfCallsInHalfOpenState, int halfOpenSuccessRateThreshold) {
+                this(name, failureThreshold, failureThresholdTimeFrameMs, retryAfterMs, failureIndications, slidingWindow,
+                        permittedNumberOfCallsInHalfOpenState, halfOpenSuccessRateThreshold, 1, 0, 0);
+        }
+
+        public CircuitBreakerRegistryEntry(String name, int failureThreshold, long failureThresholdTimeFrameMs, long retryAfterMs, List<Class<? extends Throwable>> failureIndications,
+                                           CircuitBreakerSlidingWindow slidingWindow, int permittedNumberOfCallsInHalfOpenState, int halfOpenSuccessRateThreshold,
+                                           double retryAfterMultiplier, long maxRetryAfterMs, double retryAfterJitter) {
+                this(name, failureThreshold, failureThresholdTimeFrameMs, retryAfterMs, failureIndications, slidingWindow,
+                        permittedNumberOfCallsInHalfOpenState, halfOpenSuccessRateThreshold, retryAfterMultiplier, maxRetryAfterMs, retryAfterJitter,
+                        Collections.<Class<? extends Throwable>>emptyList(), new CircuitBreakerState());
+        }
+
+        CircuitBreakerRegistryEntry(String name, int failureThreshold, long failureThresholdTimeFrameMs, long retryAfterMs, List<Class<? extends Throwable>> failureIndications,
+                                    CircuitBreakerSlidingWindow slidingWindow, int permittedNumberOfCallsInHalfOpenState, int halfOpenSuccessRateThreshold,
+                                    double retryAfterMultiplier, long maxRetryAfterMs, double retryAfterJitter, List<Class<? extends Throwable>> excludeExceptions,
+                                    CircuitBreakerState state) {
                 this.name = name;
                 this.failureThreshold = failureThreshold;
                 this.failureThresholdTimeFrameMs = failureThresholdTimeFrameMs;
                 this.retryAfterMs = retryAfterMs;
                 this.failureIndications = failureIndications;
-                this.failures = new  ArrayList<Long>();
-                this.status = CircuitBreakerStatus.CLOSED;
+                this.failureClassifier = new ExceptionClassifier(null, toArray(failureIndications), toArray(excludeExceptions));
+                this.failures = new long[Math.max(1, failureThreshold)];
+                this.slidingWindow = slidingWindow;
+                this.permittedNumberOfCallsInHalfOpenState = Math.min(MAX_PERMITTED_CALLS_IN_HALF_OPEN_STATE, Math.max(1, permittedNumberOfCallsInHalfOpenState));
+                this.halfOpenSuccessRateThreshold = Math.min(100, Math.max(1, halfOpenSuccessRateThreshold));
+                this.retryAfterMultiplier = Math.max(1, retryAfterMultiplier);
+                this.maxRetryAfterMs = maxRetryAfterMs;
+                this.retryAfterJitter = Math.min(1, Math.max(0, retryAfterJitter));
+                this.state = state;
+                if (!state.isShared()) {
+                        // a shared state keeps the values other processes left there
+                        state.set(new CircuitBreakerState.Values(0, 0, retryAfterMs, 0, 0));
+                }
         }
 
-        public CircuitBreakerStatus getStatus() {
-                return status;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static Class<? extends Throwable>[] toArray(List<Class<? extends Throwable>> exceptions) {
+                return exceptions.toArray(new Class[exceptions.size()]);
+        }
+
+        static long encode(CircuitBreakerStatus status, long cycle) {
+                return (cycle << CYCLE_SHIFT) | status.ordinal();
+        }
+
+        private static long encodeHalfOpen(long cycle, long permits, long successes, long failures) {
+                return encode(CircuitBreakerStatus.HALF_OPEN, cycle) | (permits << PERMITS_SHIFT) | (successes << SUCCESSES_SHIFT) | (failures << FAILURES_SHIFT);
+        }
+
+        static CircuitBreakerStatus statusOf(long state) {
+                return STATUSES[(int) (state & STATUS_MASK)];
+        }
+
+        static long closedCycleOf(long state) {
+                return state >>> CYCLE_SHIFT;
+        }
+
+        private static long trialCounter(long state, int shift) {
+                return (state >>> shift) & TRIAL_COUNTER_MASK;
+        }
+
+        void setEventPublisher(CircuitBreakerEventPublisher eventPublisher) {
+                this.eventPublisher = eventPublisher;
+        }
+
+        private void publishTransition(CircuitBreakerStatus fromStatus, CircuitBreakerStatus toStatus) {
+                // transitions are rare, unlike calls, so they are always logged whatever the trace sampling
+                if (toStatus == CircuitBreakerStatus.OPEN) {
+                        logger.warn("CIRCUIT STATUS: {} -> {} for method {}", fromStatus, toStatus, name);
+                } else {
+                        logger.info("CIRCUIT STATUS: {} -> {} for method {}", fromStatus, toStatus, name);
+                }
+                if (eventPublisher != null) {
+                        eventPublisher.publish(CircuitBreakerEventType.STATE_TRANSITION, name, fromStatus, toStatus, 0);
+                }
+        }
+
+        /**
+         * @return the raw state word. decode with {@link #statusOf(long)} and {@link #closedCycleOf(long)}.
+         */
+        long getState() {
+                return state.get();
+        }
+
+        /**
+         * CLOSED -> OPEN. Only succeeds if the circuit is still in the closed cycle the caller observed.
+         *
+         * @return true if this thread opened the circuit.
+         */
+        boolean tryOpen(long closedCycle, long now) {
+                long expected = encode(CircuitBreakerStatus.CLOSED, closedCycle);
+                CircuitBreakerState.Values current = state.read();
+                if (current.word != expected) {
+                        return false;
+                }
+                // the time it was opened goes in with the OPEN word, so only the thread that opens the circuit writes it
+                CircuitBreakerState.Values next = new CircuitBreakerState.Values(encode(CircuitBreakerStatus.OPEN, closedCycle), now,
+                        retryAfterMs(current.consecutiveReopens), current.consecutiveReopens, current.halfOpenedTime);
+                if (state.compareAndSet(expected, next)) {
+                        clearFailures();
+                        publishTransition(CircuitBreakerStatus.CLOSED, CircuitBreakerStatus.OPEN);
+                        return true;
+                }
+                return false;
+        }
+
+        /**
+         * OPEN -> HALF_OPEN once retryAfterMs has elapsed, or a further trial permit while HALF_OPEN.
+         * At most permittedNumberOfCallsInHalfOpenState threads get a permit per HALF_OPEN cycle.
+         * A HALF_OPEN cycle that handed out all its permits but is still undecided after the OPEN period starts over
+         * with a new cycle: a trial call whose outcome never came back, say because its process died holding a shared
+         * permit, must not keep the circuit from recovering.
+         *
+         * @return the HALF_OPEN cycle the permit belongs to, or -1 if this thread got no trial permit.
+         */
+        long tryAcquireTrialPermit(long now) {
+                while (true) {
+                        CircuitBreakerState.Values values = state.read();
+                        long current = values.word;
+                        CircuitBreakerStatus status = statusOf(current);
+                        long next;
+                        if (status == CircuitBreakerStatus.OPEN) {
+                                if (now - values.lastOpenedTime < values.openDurationMs) {
+                                        return -1;
+                                }
+                                next = encodeHalfOpen(closedCycleOf(current) + 1, 1, 0, 0);
+                        } else if (status == CircuitBreakerStatus.HALF_OPEN) {
+                                long permits = trialCounter(current, PERMITS_SHIFT);
+                                if (permits < permittedNumberOfCallsInHalfOpenState) {
+                                        next = current + (1L << PERMITS_SHIFT);
+                                } else if (now - values.halfOpenedTime >= values.openDurationMs) {
+                                        // outcomes of the stale cycle are ignored from now on
+                                        next = encodeHalfOpen(closedCycleOf(current) + 1, 1, 0, 0);
+                                } else {
+                                        return -1;
+                                }
+                        } else {
+                                return -1;
+                        }
+                        boolean newCycle = closedCycleOf(next) != closedCycleOf(current);
+                        CircuitBreakerState.Values update = values.withWord(next);
+                        if (newCycle) {
+                                update = new CircuitBreakerState.Values(next, values.lastOpenedTime, values.openDurationMs, values.consecutiveReopens, now);
+                        }
+                        if (state.compareAndSet(current, update)) {
+                                if (status == CircuitBreakerStatus.OPEN) {
+                                        publishTransition(CircuitBreakerStatus.OPEN, CircuitBreakerStatus.HALF_OPEN);
+                                } else if (newCycle) {
+                                        logger.warn("HALF_OPEN trial of method {} got no outcome within {} ms, starting over", name, values.openDurationMs);
+                                }
+                                return closedCycleOf(next);
+                        }
+                }
+        }
+
+        /**
+         * records the outcome of a trial call of the given HALF_OPEN cycle. The circuit closes (HALF_OPEN -> CLOSED,
+         * starting a new closed cycle) as soon as halfOpenSuccessRateThreshold percent of the permitted trial calls
+         * succeeded, and opens again (HALF_OPEN -> OPEN, restarting the retryAfterMs wait) as soon as that ratio can
+         * not be reached anymore. Outcomes of trials from an earlier HALF_OPEN cycle are ignored.
+         * Every reopen backs the next wait off by retryAfterMultiplier, closing resets it.
+         *
+         * @return the status after recording, HALF_OPEN while the trial is undecided.
+         */
+        CircuitBreakerStatus recordTrial(long cycle, boolean success, long now) {
+                while (true) {
+                        CircuitBreakerState.Values values = state.read();
+                        long current = values.word;
+                        if (statusOf(current) != CircuitBreakerStatus.HALF_OPEN || closedCycleOf(current) != cycle) {
+                                return statusOf(current);
+                        }
+                        long permits = trialCounter(current, PERMITS_SHIFT);
+                        long successes = trialCounter(current, SUCCESSES_SHIFT) + (success ? 1 : 0);
+                        long failures = trialCounter(current, FAILURES_SHIFT) + (success ? 0 : 1);
+                        CircuitBreakerState.Values next;
+                        if (successes * 100 >= (long) permittedNumberOfCallsInHalfOpenState * halfOpenSuccessRateThreshold) {
+                                next = new CircuitBreakerState.Values(encode(CircuitBreakerStatus.CLOSED, cycle + 1), values.lastOpenedTime,
+                                        values.openDurationMs, 0, values.halfOpenedTime);
+                        } else if ((permittedNumberOfCallsInHalfOpenState - failures) * 100 < (long) permittedNumberOfCallsInHalfOpenState * halfOpenSuccessRateThreshold) {
+                                int reopens = values.consecutiveReopens + 1;
+                                next = new CircuitBreakerState.Values(encode(CircuitBreakerStatus.OPEN, cycle), now,
+                                        retryAfterMs(reopens), reopens, values.halfOpenedTime);
+                        } else {
+                                next = values.withWord(encodeHalfOpen(cycle, permits, successes, failures));
+                        }
+                        if (state.compareAndSet(current, next)) {
+                                CircuitBreakerStatus status = statusOf(next.word);
+                                if (status != CircuitBreakerStatus.HALF_OPEN) {
+                                        clearFailures();
+                                        publishTransition(CircuitBreakerStatus.HALF_OPEN, status);
+                                }
+                                return status;
+                        }
+                }
+        }
+
+        /**
+         * loads state saved by {@link CircuitBreakerSnapshotStore} into a new entry, before it is published.
+         * A circuit saved HALF_OPEN comes back OPEN: the trial calls died with the old process, so the
+         * trial is simply repeated once openDurationMs elapsed. A shared state is left alone: it outlives the process anyway
+         * and other processes may have moved on since the snapshot was taken.
+         */
+        void restore(long savedState, long savedLastOpenedTime, long savedOpenDurationMs, int savedConsecutiveReopens, long[] savedFailures) {
+                CircuitBreakerStatus status = statusOf(savedState);
+                if (status == CircuitBreakerStatus.HALF_OPEN || status == CircuitBreakerStatus.HALF_OPEN_EXCLUSIVE) {
+                        status = CircuitBreakerStatus.OPEN;
+                }
+                synchronized (failures) {
+                        failuresHead = 0;
+                        failuresCount = 0;
+                        // keep the newest failures if the threshold got smaller
+                        for (int i = Math.max(0, savedFailures.length - failures.length); i < savedFailures.length; i++) {
+                                failures[failuresHead] = savedFailures[i];
+                                failuresHead = (failuresHead + 1) % failures.length;
+                                failuresCount++;
+                        }
+                }
+                if (!state.isShared()) {
+                        state.set(new CircuitBreakerState.Values(encode(status, closedCycleOf(savedState)), savedLastOpenedTime,
+                                savedOpenDurationMs, savedConsecutiveReopens, 0));
+                }
+        }
+
+        /**
+         * @return retryAfterMs backed off for the given number of failed trials in a row, capped and jittered.
+         */
+        private long retryAfterMs(int reopens) {
+                double delay = retryAfterMs * Math.pow(retryAfterMultiplier, reopens);
+                if (retryAfterJitter > 0) {
+                        delay *= 1 + retryAfterJitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+                }
+                if (maxRetryAfterMs > 0 && delay > maxRetryAfterMs) {
+                        delay = maxRetryAfterMs;
+                }
+                // the cast saturates at Long.MAX_VALUE if an unbounded backoff overflows
+                return (long) delay;
+        }
+
+        /**
+         * @return true if slow call detection is on and a call of the given duration counts as slow.
+         */
+        boolean isSlowCall(long durationNanos) {
+                return slidingWindow != null && slidingWindow.isSlowCall(durationNanos);
         }
 
-        public void setStatus(CircuitBreakerStatus status) {
-                this.status = status;
+        /**
+         * records a successful call and reports whether the slow call rate of the sliding window reached its threshold.
+         * only the failure rate and slow call modes keep track of successes.
+         */
+        boolean addSuccess(long now, long durationNanos) {
+                return slidingWindow != null && slidingWindow.record(now, durationNanos, false);
         }
 
-        public ArrayList<Long> getFailures() {
-                return failures;
+        /**
+         * records a failure and reports whether failureThreshold failures happened within failureThresholdTimeFrameMs,
+         * or with a sliding window whether its failure rate or slow call rate reached the threshold.
+         */
+        boolean addFailure(long now, long durationNanos) {
+                if (slidingWindow == null) {
+                        return addFailure(now);
+                }
+                boolean thresholdAchieved = slidingWindow.record(now, durationNanos, true);
+                if (!slidingWindow.isFailureRateMode()) {
+                        thresholdAchieved |= addFailure(now);
+                }
+                return thresholdAchieved;
         }
 
-        public void setFailures(ArrayList<Long> failures) {
-                this.failures = failures;
+        /**
+         * failures are guarded by this entry only, so recording never contends with other breakers.
+         * the oldest failure is overwritten in place: O(1) and no allocation whatever the threshold.
+         * with a shared state the failure count of all co-located processes decides instead.
+         */
+        private boolean addFailure(long now) {
+                boolean thresholdAchieved;
+                synchronized (failures) {
+                        failures[failuresHead] = now;
+                        failuresHead = (failuresHead + 1) % failures.length;
+                        if (failuresCount < failures.length) {
+                                failuresCount++;
+                        }
+                        thresholdAchieved = failuresCount == failures.length && now - failures[failuresHead] <= failureThresholdTimeFrameMs;
+                }
+                if (state.isShared()) {
+                        return state.addSharedFailure(now, failureThresholdTimeFrameMs, failureThreshold);
+                }
+                return thresholdAchieved;
+        }
+
+        private void clearFailures() {
+                synchronized (failures) {
+                        failuresHead = 0;
+                        failuresCount = 0;
+                }
+                if (slidingWindow != null) {
+                        slidingWindow.reset();
+                }
+        }
+
+        public CircuitBreakerStatus getStatus() {
+                return statusOf(state.get());
+        }
+
+        /**
+         * @return copy of the recorded failure times, oldest first.
+         */
+        public List<Long> getFailures() {
+                synchronized (failures) {
+                        List<Long> copy = new ArrayList<Long>(failuresCount);
+                        int oldest = failuresCount < failures.length ? 0 : failuresHead;
+                        for (int i = 0; i < failuresCount; i++) {
+                                copy.add(failures[(oldest + i) % failures.length]);
+                        }
+                        return copy;
+                }
+        }
+
+        /**
+         * @return the sliding window of the failure rate and slow call modes, or null in failure count mode.
+         */
+        public CircuitBreakerSlidingWindow getSlidingWindow() {
+                return slidingWindow;
         }
 
         public String getName() {
@@ -95,24 +471,42 @@ public class CircuitBreakerRegistryEntry {
                 return retryAfterMs;
         }
 
+        /**
+         * @return true if the exception is one of the failureIndications and not excluded.
+         */
+        public boolean isFailure(Throwable throwable) {
+                return failureClassifier.matches(throwable);
+        }
+
         public List<Class<? extends Throwable>> getFailureIndications() {
                 return failureIndications;
         }
 
-        public void increaseClosedCycleCounter() {
-                this.closedCycleCounter = closedCycleCounter + 1;
+        public long getClosedCycleCounter() {
+                return closedCycleOf(state.get());
         }
 
-        public long getClosedCycleCounter() {
-                return closedCycleCounter;
+        public int getPermittedNumberOfCallsInHalfOpenState() {
+                return permittedNumberOfCallsInHalfOpenState;
         }
 
-        public long getLastOpenedTime() {
-                return lastOpenedTime;
+        public int getHalfOpenSuccessRateThreshold() {
+                return halfOpenSuccessRateThreshold;
         }
 
-        public void setLastOpenedTime(long lastOpenedTime) {
-                this.lastOpenedTime = lastOpenedTime;
+        /**
+         * @return the wait before the current OPEN period turns HALF_OPEN, retryAfterMs unless backed off.
+         */
+        public long getOpenDurationMs() {
+                return state.read().openDurationMs;
+        }
+
+        public int getConsecutiveReopens() {
+                return state.read().consecutiveReopens;
+        }
+
+        public long getLastOpenedTime() {
+                return state.read().lastOpenedTime;
         }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,425 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Circuit breaker state shared by the processes of a host through a memory-mapped file.
+ * <p/>
+ * Every breaker gets a 128 byte slot, found by open addressing on a 64 bit hash of its method key:
+ * <pre>
+ *  0 key | 8 state word | 16 lastOpenedTime | 24 openDurationMs | 32 consecutiveReopens | 40 failure window start | 48 failures | 56 halfOpenedTime
+ *  64 sequence | 72 unused
+ * </pre>
+ * A zeroed slot is a CLOSED circuit in cycle 0, so a fresh file needs no initialization beyond its header. The
+ * state word goes through the same compare-and-set transitions as on the heap, so co-located processes trip and
+ * recover together.
+ * <p/>
+ * Every write holds a {@link FileLock} on the range of its slot only, and a monitor of that slot for the threads of
+ * this JVM, since file locks only exclude other processes. Breakers in different slots never wait for each other,
+ * and a transition writes all of its fields under one acquisition and increments the sequence of the slot.
+ * <p/>
+ * Plain reads of a mapping are not ordered against writes of other threads, so the state is never read from the file
+ * without a lock. Each slot has an immutable copy of its fields in a volatile field, tagged with the sequence it was
+ * read at. A transition made in this JVM publishes its copy before releasing the lock. Reading the state is a volatile
+ * read of that copy, plus a plain read of the sequence in the file to notice transitions of other processes. Only when
+ * the sequence differs is the slot read again, under the slot monitor and a shared file lock. The sequence is only
+ * compared, never used as state, so a stale or torn value of it costs one locked read at worst, or delays seeing
+ * another process' transition. Transitions check the state word under the lock anyway.
+ * <p/>
+ * The failure count is a tumbling window of failureThresholdTimeFrameMs shared by all processes. Failures of a
+ * CLOSED circuit are counted in the process first and added to the shared count in batches of a quarter of the
+ * failureThreshold, or as soon as the local count would reach the threshold, so the lock is taken once every few
+ * failures. A process thus holds back less than a quarter of the threshold. Failure rate and slow call windows stay
+ * per process.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public class CircuitBreakerSharedMemory {
+
+        private static final Logger logger = LoggerFactory.getLogger(CircuitBreakerSharedMemory.class);
+
+        private static final int MAGIC = 0x43425348; // "CBSH"
+
+        private static final int VERSION = 3;
+
+        private static final int HEADER_SIZE = 64;
+
+        private static final int SLOT_SIZE = 128;
+
+        private static final int KEY = 0;
+
+        private static final int WORD = 8;
+
+        private static final int LAST_OPENED_TIME = 16;
+
+        private static final int OPEN_DURATION = 24;
+
+        private static final int CONSECUTIVE_REOPENS = 32;
+
+        private static final int WINDOW_START = 40;
+
+        private static final int FAILURES = 48;
+
+        private static final int HALF_OPENED_TIME = 56;
+
+        private static final int SEQUENCE = 64;
+
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        // by canonical path. two channels of one JVM may not hold overlapping locks on the same file
+        private static final ConcurrentMap<String, FileMonitors> MONITORS = new ConcurrentHashMap<String, FileMonitors>();
+
+        private final File file;
+
+        private final int slots;
+
+        private final FileMonitors monitors;
+
+        // keeps the mapping alive as long as states point into it
+        private final MappedByteBuffer buffer;
+
+        // reopened when an interrupt closed it
+        private volatile FileChannel channel;
+
+        /**
+         * maps the given file, creating it with room for the given number of breakers if needed.
+         * A file created by another process keeps the number of slots it was created with.
+         */
+        public CircuitBreakerSharedMemory(File file, int slots) throws IOException {
+                this.file = file;
+                FileMonitors newMonitors = new FileMonitors();
+                FileMonitors existingMonitors = MONITORS.putIfAbsent(file.getCanonicalPath(), newMonitors);
+                monitors = existingMonitors != null ? existingMonitors : newMonitors;
+                synchronized (monitors.header) {
+                        channel = new RandomAccessFile(file, "rw").getChannel();
+                        try {
+                                long size = Math.max(channel.size(), HEADER_SIZE + (long) Math.max(1, slots) * SLOT_SIZE);
+                                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                                // the first process writes the header, the others check it
+                                FileLock lock = lock(0, HEADER_SIZE, false);
+                                try {
+                                        if (buffer.getInt(0) == 0) {
+                                                buffer.putInt(4, VERSION);
+                                                buffer.putInt(8, Math.max(1, slots));
+                                                buffer.putInt(0, MAGIC);
+                                        }
+                                } finally {
+                                        release(lock);
+                                }
+                        } catch (IOException | RuntimeException e) {
+                                channel.close();
+                                throw e;
+                        }
+                }
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                        throw new IOException(file + " is not a circuit breaker shared state file of version " + VERSION);
+                }
+                int existingSlots = buffer.getInt(8);
+                if ((long) HEADER_SIZE + (long) existingSlots * SLOT_SIZE > buffer.capacity()) {
+                        throw new IOException(file + " is truncated");
+                }
+                this.slots = existingSlots;
+        }
+
+        /**
+         * @return the shared state of the given method, or null if all slots are taken.
+         */
+        CircuitBreakerState stateFor(String name) {
+                long key = hash(name);
+                int start = (int) ((key & Long.MAX_VALUE) % slots);
+                for (int i = 0; i < slots; i++) {
+                        int slot = HEADER_SIZE + ((start + i) % slots) * SLOT_SIZE;
+                        SlotMonitor monitor = monitors.slot(slot);
+                        long current;
+                        // claim a free slot, unless another process just claimed it, maybe for the same method
+                        synchronized (monitor) {
+                                FileLock lock = lock(slot, SLOT_SIZE, false);
+                                try {
+                                        current = buffer.getLong(slot + KEY);
+                                        if (current == 0) {
+                                                buffer.putLong(slot + KEY, key);
+                                                current = key;
+                                        }
+                                } finally {
+                                        release(lock);
+                                }
+                        }
+                        if (current == key) {
+                                return new SharedState(slot, monitor);
+                        }
+                }
+                logger.warn("no free slot left in {} for circuit breaker {}, its state is not shared", file, name);
+                return null;
+        }
+
+        public File getFile() {
+                return file;
+        }
+
+        public int getSlots() {
+                return slots;
+        }
+
+        // FNV-1a, never 0 since 0 marks a free slot
+        private static long hash(String name) {
+                long hash = 0xcbf29ce484222325L;
+                for (byte b : name.getBytes(UTF_8)) {
+                        hash ^= b & 0xFF;
+                        hash *= 0x100000001b3L;
+                }
+                return hash == 0 ? 1 : hash;
+        }
+
+        /**
+         * locks the given range of the file against other processes, shared for reading or exclusive for writing.
+         * the caller holds the monitor of that range.
+         * <p/>
+         * An interrupt closes a channel blocked in lock(), so the interrupt status of the caller is put aside meanwhile,
+         * and a channel closed anyway is reopened.
+         */
+        private FileLock lock(long position, long size, boolean shared) {
+                boolean interrupted = Thread.interrupted();
+                try {
+                        while (true) {
+                                try {
+                                        return openChannel().lock(position, size, shared);
+                                } catch (ClosedChannelException e) {
+                                        interrupted |= Thread.interrupted();
+                                }
+                        }
+                } catch (IOException e) {
+                        throw new IllegalStateException("could not lock circuit breaker shared state in " + file, e);
+                } finally {
+                        if (interrupted) {
+                                Thread.currentThread().interrupt();
+                        }
+                }
+        }
+
+        private FileChannel openChannel() throws IOException {
+                FileChannel current = channel;
+                if (current.isOpen()) {
+                        return current;
+                }
+                synchronized (monitors.header) {
+                        if (!channel.isOpen()) {
+                                channel = new RandomAccessFile(file, "rw").getChannel();
+                        }
+                        return channel;
+                }
+        }
+
+        private void release(FileLock lock) {
+                try {
+                        lock.release();
+                } catch (ClosedChannelException e) {
+                        // closing the channel released the lock
+                } catch (IOException e) {
+                        logger.warn("could not unlock circuit breaker shared state in {}", file, e);
+                }
+        }
+
+        /**
+         * monitors of one file, shared by all mappings of it in this JVM: one for the header and one per slot.
+         */
+        private static final class FileMonitors {
+
+                final Object header = new Object();
+
+                private final ConcurrentMap<Integer, SlotMonitor> slots = new ConcurrentHashMap<Integer, SlotMonitor>();
+
+                SlotMonitor slot(int slot) {
+                        SlotMonitor monitor = slots.get(slot);
+                        if (monitor == null) {
+                                SlotMonitor newMonitor = new SlotMonitor();
+                                monitor = slots.putIfAbsent(slot, newMonitor);
+                                if (monitor == null) {
+                                        monitor = newMonitor;
+                                }
+                        }
+                        return monitor;
+                }
+        }
+
+        /**
+         * monitor of one slot, holding the copy of its fields last read or written in this JVM.
+         */
+        private static final class SlotMonitor {
+
+                volatile Published published;
+        }
+
+        private static final class Published {
+
+                final long sequence;
+
+                final CircuitBreakerState.Values values;
+
+                Published(long sequence, CircuitBreakerState.Values values) {
+                        this.sequence = sequence;
+                        this.values = values;
+                }
+        }
+
+        private final class SharedState extends CircuitBreakerState {
+
+                private final int slot;
+
+                private final SlotMonitor monitor;
+
+                // failures of this process not yet added to the shared count
+                private final AtomicInteger pendingFailures = new AtomicInteger();
+
+                // shared count and window start as of the last flush, 0 after a transition so the next failure flushes
+                private volatile long flushedFailures;
+
+                private volatile long flushedWindowStart;
+
+                SharedState(int slot, SlotMonitor monitor) {
+                        this.slot = slot;
+                        this.monitor = monitor;
+                }
+
+                /**
+                 * @return the published copy, unless the sequence in the file says another process changed the slot.
+                 */
+                @Override
+                Values read() {
+                        Published published = monitor.published;
+                        if (published != null && published.sequence == buffer.getLong(slot + SEQUENCE)) {
+                                return published.values;
+                        }
+                        synchronized (monitor) {
+                                FileLock lock = lock(slot, SLOT_SIZE, true);
+                                try {
+                                        return publish();
+                                } finally {
+                                        release(lock);
+                                }
+                        }
+                }
+
+                // the caller holds the monitor and a lock on the slot
+                private Values publish() {
+                        Values values = new Values(buffer.getLong(slot + WORD), buffer.getLong(slot + LAST_OPENED_TIME),
+                                buffer.getLong(slot + OPEN_DURATION), (int) buffer.getLong(slot + CONSECUTIVE_REOPENS),
+                                buffer.getLong(slot + HALF_OPENED_TIME));
+                        monitor.published = new Published(buffer.getLong(slot + SEQUENCE), values);
+                        return values;
+                }
+
+                @Override
+                void set(Values values) {
+                        throw new UnsupportedOperationException("shared state is only changed by transitions");
+                }
+
+                /**
+                 * writes the whole transition under one lock. a change of status also starts a new failure count.
+                 */
+                @Override
+                boolean compareAndSet(long expect, Values update) {
+                        synchronized (monitor) {
+                                FileLock lock = lock(slot, SLOT_SIZE, false);
+                                try {
+                                        if (buffer.getLong(slot + WORD) != expect) {
+                                                publish();
+                                                return false;
+                                        }
+                                        buffer.putLong(slot + LAST_OPENED_TIME, update.lastOpenedTime);
+                                        buffer.putLong(slot + OPEN_DURATION, update.openDurationMs);
+                                        buffer.putLong(slot + CONSECUTIVE_REOPENS, update.consecutiveReopens);
+                                        buffer.putLong(slot + HALF_OPENED_TIME, update.halfOpenedTime);
+                                        if (CircuitBreakerRegistryEntry.statusOf(expect) != CircuitBreakerRegistryEntry.statusOf(update.word)) {
+                                                buffer.putLong(slot + WINDOW_START, 0);
+                                                buffer.putLong(slot + FAILURES, 0);
+                                                pendingFailures.set(0);
+                                                flushedFailures = 0;
+                                                flushedWindowStart = 0;
+                                        }
+                                        buffer.putLong(slot + WORD, update.word);
+                                        long sequence = buffer.getLong(slot + SEQUENCE) + 1;
+                                        buffer.putLong(slot + SEQUENCE, sequence);
+                                        monitor.published = new Published(sequence, update);
+                                        return true;
+                                } finally {
+                                        release(lock);
+                                }
+                        }
+                }
+
+                @Override
+                boolean isShared() {
+                        return true;
+                }
+
+                /**
+                 * counts the failure locally, and adds the local count to the shared one once it makes a batch, would
+                 * reach the threshold, or the window of the last flush is over.
+                 */
+                @Override
+                boolean addSharedFailure(long now, long failureThresholdTimeFrameMs, int failureThreshold) {
+                        int pending = pendingFailures.incrementAndGet();
+                        if (pending < Math.max(1, failureThreshold / 4) && flushedFailures + pending < failureThreshold
+                                && now - flushedWindowStart <= failureThresholdTimeFrameMs) {
+                                return false;
+                        }
+                        synchronized (monitor) {
+                                FileLock lock = lock(slot, SLOT_SIZE, false);
+                                try {
+                                        long windowStart = buffer.getLong(slot + WINDOW_START);
+                                        long failures = buffer.getLong(slot + FAILURES);
+                                        if (now - windowStart > failureThresholdTimeFrameMs) {
+                                                windowStart = now;
+                                                failures = 0;
+                                                buffer.putLong(slot + WINDOW_START, windowStart);
+                                        }
+                                        failures += pendingFailures.getAndSet(0);
+                                        buffer.putLong(slot + FAILURES, failures);
+                                        flushedFailures = failures;
+                                        flushedWindowStart = windowStart;
+                                        return failures >= failureThreshold;
+                                } finally {
+                                        release(lock);
+                                }
+                        }
+                }
+        }
+}
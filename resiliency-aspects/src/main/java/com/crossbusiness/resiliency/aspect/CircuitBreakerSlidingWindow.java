@@ -0,0 +1,267 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Time bucketed sliding window of call outcomes, used by the failure rate and slow call modes of a circuit breaker.
+ * <p/>
+ * The window is split into buckets of striped {@link LongAdder} counters. Recording an outcome only
+ * increments the counters of the current bucket, so the success path neither allocates nor contends;
+ * the buckets are summed up on failures and slow calls only. A bucket that falls out of the window is reset lazily
+ * by the first call that lands on it again, which makes the counts approximate by a few calls at bucket
+ * boundaries - good enough for a percentage.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public class CircuitBreakerSlidingWindow {
+
+        private static final int CALLS = 0;
+
+        private static final int FAILURES = 1;
+
+        private static final int SLOW_CALLS = 2;
+
+        private final long windowMs;
+
+        private final long bucketMs;
+
+        private final Bucket[] buckets;
+
+        private final int minimumNumberOfCalls;
+
+        private final int failureRateThreshold;
+
+        private final long slowCallDurationThresholdNanos;
+
+        private final int slowCallRateThreshold;
+
+        public CircuitBreakerSlidingWindow(long windowMs, int numberOfBuckets, int minimumNumberOfCalls, int failureRateThreshold) {
+                this(windowMs, numberOfBuckets, minimumNumberOfCalls, failureRateThreshold, 0, 100);
+        }
+
+        public CircuitBreakerSlidingWindow(long windowMs, int numberOfBuckets, int minimumNumberOfCalls, int failureRateThreshold,
+                                           long slowCallDurationThresholdMs, int slowCallRateThreshold) {
+                int size = Math.max(1, numberOfBuckets);
+                this.windowMs = windowMs;
+                this.bucketMs = Math.max(1, windowMs / size);
+                this.buckets = new Bucket[size];
+                for (int i = 0; i < size; i++) {
+                        buckets[i] = new Bucket();
+                }
+                this.minimumNumberOfCalls = Math.max(1, minimumNumberOfCalls);
+                this.failureRateThreshold = failureRateThreshold;
+                this.slowCallDurationThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationThresholdMs);
+                this.slowCallRateThreshold = slowCallRateThreshold;
+        }
+
+        /**
+         * records a call outcome and reports whether, with at least minimumNumberOfCalls calls in the window,
+         * the failure rate reached failureRateThreshold or the slow call rate reached slowCallRateThreshold.
+         *
+         * @param now            wall clock time of the call end, in ms
+         * @param durationNanos  call latency measured with {@link System#nanoTime()}
+         * @param failure        true if the call failed with one of the failureIndications
+         */
+        boolean record(long now, long durationNanos, boolean failure) {
+                Bucket bucket = bucket(now);
+                bucket.calls.increment();
+                boolean countFailure = failure && failureRateThreshold > 0;
+                boolean slow = isSlowCall(durationNanos);
+                if (failure) {
+                        bucket.failures.increment();
+                }
+                if (slow) {
+                        bucket.slowCalls.increment();
+                }
+                if (!countFailure && !slow) {
+                        // fast, successful calls can never open the circuit, no need to sum up the window
+                        return false;
+                }
+                long calls = sum(now, CALLS);
+                if (calls < minimumNumberOfCalls) {
+                        return false;
+                }
+                return (countFailure && sum(now, FAILURES) * 100 >= calls * failureRateThreshold)
+                        || (slow && sum(now, SLOW_CALLS) * 100 >= calls * slowCallRateThreshold);
+        }
+
+        boolean isSlowCall(long durationNanos) {
+                return slowCallDurationThresholdNanos > 0 && durationNanos >= slowCallDurationThresholdNanos;
+        }
+
+        private long sum(long now, int counter) {
+                long sum = 0;
+                long oldest = now / bucketMs - buckets.length;
+                for (Bucket bucket : buckets) {
+                        if (bucket.epoch > oldest) {
+                                sum += bucket.counter(counter).sum();
+                        }
+                }
+                return sum;
+        }
+
+        void reset() {
+                for (Bucket bucket : buckets) {
+                        bucket.epoch = -1;
+                        bucket.reset();
+                }
+        }
+
+        /**
+         * @return epoch, calls, failures and slow calls of every bucket, for {@link CircuitBreakerSnapshotStore}.
+         */
+        long[] snapshot() {
+                long[] snapshot = new long[buckets.length * 4];
+                for (int i = 0; i < buckets.length; i++) {
+                        Bucket bucket = buckets[i];
+                        snapshot[i * 4] = bucket.epoch;
+                        snapshot[i * 4 + 1] = bucket.calls.sum();
+                        snapshot[i * 4 + 2] = bucket.failures.sum();
+                        snapshot[i * 4 + 3] = bucket.slowCalls.sum();
+                }
+                return snapshot;
+        }
+
+        /**
+         * loads the buckets of a {@link #snapshot()}. buckets that do not fit the current time slots are skipped,
+         * so a snapshot taken with a different window size only restores what still lines up.
+         */
+        void restore(long[] snapshot) {
+                for (int i = 0; i + 3 < snapshot.length; i += 4) {
+                        long epoch = snapshot[i];
+                        if (epoch < 0) {
+                                continue;
+                        }
+                        Bucket bucket = buckets[(int) (epoch % buckets.length)];
+                        if (bucket.epoch >= epoch) {
+                                continue;
+                        }
+                        bucket.epoch = epoch;
+                        bucket.reset();
+                        bucket.calls.add(snapshot[i + 1]);
+                        bucket.failures.add(snapshot[i + 2]);
+                        bucket.slowCalls.add(snapshot[i + 3]);
+                }
+        }
+
+        private Bucket bucket(long now) {
+                long epoch = now / bucketMs;
+                Bucket bucket = buckets[(int) (epoch % buckets.length)];
+                long current = bucket.epoch;
+                if (current < epoch && Bucket.EPOCH.compareAndSet(bucket, current, epoch)) {
+                        // this thread moved the bucket into the current time slot, drop the counts of the old slot.
+                        bucket.reset();
+                }
+                return bucket;
+        }
+
+        /**
+         * @return true if failures are evaluated as a rate rather than by failureThreshold.
+         */
+        public boolean isFailureRateMode() {
+                return failureRateThreshold > 0;
+        }
+
+        /**
+         * @return calls recorded in the current window.
+         */
+        public long getCalls() {
+                return sum(System.currentTimeMillis(), CALLS);
+        }
+
+        /**
+         * @return failures recorded in the current window.
+         */
+        public long getFailures() {
+                return sum(System.currentTimeMillis(), FAILURES);
+        }
+
+        /**
+         * @return slow calls recorded in the current window.
+         */
+        public long getSlowCalls() {
+                return sum(System.currentTimeMillis(), SLOW_CALLS);
+        }
+
+        public long getWindowMs() {
+                return windowMs;
+        }
+
+        public int getNumberOfBuckets() {
+                return buckets.length;
+        }
+
+        public int getMinimumNumberOfCalls() {
+                return minimumNumberOfCalls;
+        }
+
+        public int getFailureRateThreshold() {
+                return failureRateThreshold;
+        }
+
+        public long getSlowCallDurationThresholdMs() {
+                return TimeUnit.NANOSECONDS.toMillis(slowCallDurationThresholdNanos);
+        }
+
+        public int getSlowCallRateThreshold() {
+                return slowCallRateThreshold;
+        }
+
+        private static final class Bucket {
+
+                static final AtomicLongFieldUpdater<Bucket> EPOCH = AtomicLongFieldUpdater.newUpdater(Bucket.class, "epoch");
+
+                // time slot (now / bucketMs) the counters belong to
+                volatile long epoch = -1;
+
+                final LongAdder calls = new LongAdder();
+
+                final LongAdder failures = new LongAdder();
+
+                final LongAdder slowCalls = new LongAdder();
+
+                LongAdder counter(int counter) {
+                        switch (counter) {
+                        case FAILURES:
+                                return failures;
+                        case SLOW_CALLS:
+                                return slowCalls;
+                        default:
+                                return calls;
+                        }
+                }
+
+                void reset() {
+                        calls.reset();
+                        failures.reset();
+                        slowCalls.reset();
+                }
+        }
+}
@@ -0,0 +1,231 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Persists circuit breaker state to a memory-mapped file, so a restarted node comes up with the open/closed view
+ * of its predecessor instead of hammering dependencies that were known to be down.
+ * <p/>
+ * The file holds one compact binary record per breaker:
+ * <pre>
+ *  header : magic (int) | version (int) | records (int) | written at (long)
+ *  record : name length (short) | name (UTF-8) | state (long) | lastOpenedTime (long) | openDurationMs (long)
+ *           | consecutiveReopens (int) | failures (int) | failure times (long...) | bucket values (int) | buckets (long...)
+ * </pre>
+ * The magic is written last, so a snapshot torn by a crash is ignored at startup rather than half restored.
+ * Records are loaded once by {@link #load()} and handed to the entries as the registry creates them.
+ * Enable it with {@link CircuitBreakerMethodRegistry#enableSnapshots(File, long)} or the
+ * <code>resiliency.circuitBreaker.snapshotFile</code> system property.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public class CircuitBreakerSnapshotStore {
+
+        private static final Logger logger = LoggerFactory.getLogger(CircuitBreakerSnapshotStore.class);
+
+        private static final int MAGIC = 0x43425353; // "CBSS"
+
+        private static final int VERSION = 1;
+
+        private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+        private final File file;
+
+        // records read at startup, removed once restored into an entry
+        private final Map<String, Record> pending = new ConcurrentHashMap<String, Record>();
+
+        // serialized snapshot, reused between writes. guarded by this.
+        private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+        // grown on demand, never shrunk: unmapping is not possible before the buffer is garbage collected. guarded by this.
+        private MappedByteBuffer mapped;
+
+        public CircuitBreakerSnapshotStore(File file) {
+                this.file = file;
+        }
+
+        /**
+         * reads the snapshot file if there is one. A missing, foreign or torn file just leaves nothing to restore.
+         *
+         * @return number of breakers found in the snapshot
+         */
+        public synchronized int load() {
+                pending.clear();
+                if (!file.isFile() || file.length() < HEADER_SIZE) {
+                        return 0;
+                }
+                try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                        ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                                logger.warn("ignoring circuit breaker snapshot {}: unknown format", file);
+                                return 0;
+                        }
+                        int records = in.getInt();
+                        in.getLong();
+                        for (int r = 0; r < records; r++) {
+                                byte[] name = new byte[in.getShort() & 0xFFFF];
+                                in.get(name);
+                                Record record = new Record();
+                                record.state = in.getLong();
+                                record.lastOpenedTime = in.getLong();
+                                record.openDurationMs = in.getLong();
+                                record.consecutiveReopens = in.getInt();
+                                record.failures = new long[in.getInt()];
+                                for (int i = 0; i < record.failures.length; i++) {
+                                        record.failures[i] = in.getLong();
+                                }
+                                record.buckets = new long[in.getInt()];
+                                for (int i = 0; i < record.buckets.length; i++) {
+                                        record.buckets[i] = in.getLong();
+                                }
+                                pending.put(new String(name, UTF_8), record);
+                        }
+                } catch (IOException | BufferUnderflowException | NegativeArraySizeException e) {
+                        logger.warn("ignoring unreadable circuit breaker snapshot {}", file, e);
+                        pending.clear();
+                }
+                return pending.size();
+        }
+
+        /**
+         * restores the saved state of the given, not yet published entry.
+         *
+         * @return true if the snapshot had a record for the entry
+         */
+        boolean restore(CircuitBreakerRegistryEntry entry) {
+                // not removed: concurrent registrations of the same method may each build an entry, only one gets published
+                Record record = pending.get(entry.getName());
+                if (record == null) {
+                        return false;
+                }
+                entry.restore(record.state, record.lastOpenedTime, record.openDurationMs, record.consecutiveReopens, record.failures);
+                if (entry.getSlidingWindow() != null) {
+                        entry.getSlidingWindow().restore(record.buckets);
+                }
+                logger.info("restored circuit breaker {} as {}", entry.getName(), entry.getStatus());
+                return true;
+        }
+
+        /**
+         * writes the state of the given entries to the snapshot file.
+         */
+        public synchronized void write(Collection<CircuitBreakerRegistryEntry> entries) throws IOException {
+                ByteBuffer out = scratch;
+                out.clear();
+                out.position(HEADER_SIZE);
+                int records = 0;
+                for (CircuitBreakerRegistryEntry entry : entries) {
+                        byte[] name = entry.getName().getBytes(UTF_8);
+                        if (name.length > 0xFFFF) {
+                                continue;
+                        }
+                        List<Long> failures = entry.getFailures();
+                        long[] buckets = entry.getSlidingWindow() != null ? entry.getSlidingWindow().snapshot() : new long[0];
+                        out = ensureCapacity(out, 2 + name.length + 8 * 3 + 4 * 3 + 8 * (failures.size() + buckets.length));
+                        out.putShort((short) name.length);
+                        out.put(name);
+                        out.putLong(entry.getState());
+                        out.putLong(entry.getLastOpenedTime());
+                        out.putLong(entry.getOpenDurationMs());
+                        out.putInt(entry.getConsecutiveReopens());
+                        out.putInt(failures.size());
+                        for (Long failure : failures) {
+                                out.putLong(failure);
+                        }
+                        out.putInt(buckets.length);
+                        for (long value : buckets) {
+                                out.putLong(value);
+                        }
+                        records++;
+                }
+                scratch = out;
+                int size = out.position();
+                out.putInt(0, 0);
+                out.putInt(4, VERSION);
+                out.putInt(8, records);
+                out.putLong(12, System.currentTimeMillis());
+                out.flip();
+
+                MappedByteBuffer target = map(size);
+                // invalidate first, so a crash in the middle leaves a snapshot load() refuses
+                target.putInt(0, 0);
+                target.position(0);
+                target.put(out);
+                target.putInt(0, MAGIC);
+                target.force();
+        }
+
+        private MappedByteBuffer map(int size) throws IOException {
+                if (mapped == null || mapped.capacity() < size) {
+                        int capacity = Math.max(size, mapped == null ? 4096 : mapped.capacity() * 2);
+                        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+                                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                        }
+                }
+                return mapped;
+        }
+
+        private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+                if (buffer.remaining() >= needed) {
+                        return buffer;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+                buffer.flip();
+                grown.put(buffer);
+                return grown;
+        }
+
+        public File getFile() {
+                return file;
+        }
+
+        private static final class Record {
+                long state;
+                long lastOpenedTime;
+                long openDurationMs;
+                int consecutiveReopens;
+                long[] failures;
+                long[] buckets;
+        }
+}
@@ -0,0 +1,127 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+
+/**
+ * Holder of the mutable state of one circuit breaker: the packed state word of {@link CircuitBreakerRegistryEntry}
+ * and the OPEN and HALF_OPEN period bookkeeping that goes with it.
+ * <p/>
+ * Both live in one immutable {@link Values} and every transition swaps it as a whole, so a reader never sees a state
+ * word with the times of another period, and a thread losing a transition leaves nothing behind.
+ * <p/>
+ * This implementation keeps it on the heap of the current JVM. {@link CircuitBreakerSharedMemory} overrides it to
+ * keep the same values in a memory-mapped file shared by the processes of a host.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+class CircuitBreakerState {
+
+        private static final AtomicReferenceFieldUpdater<CircuitBreakerState, Values> VALUES =
+                AtomicReferenceFieldUpdater.newUpdater(CircuitBreakerState.class, Values.class, "values");
+
+        private volatile Values values = new Values(0, 0, 0, 0, 0);
+
+        /**
+         * @return the current values, one volatile read.
+         */
+        Values read() {
+                return values;
+        }
+
+        long get() {
+                return read().word;
+        }
+
+        /**
+         * replaces the values of a breaker that is not published yet.
+         */
+        void set(Values values) {
+                this.values = values;
+        }
+
+        /**
+         * replaces the values if the state word is still the expected one.
+         *
+         * @return true if this thread made the transition.
+         */
+        boolean compareAndSet(long expect, Values update) {
+                while (true) {
+                        Values current = values;
+                        if (current.word != expect) {
+                                return false;
+                        }
+                        if (VALUES.compareAndSet(this, current, update)) {
+                                return true;
+                        }
+                }
+        }
+
+        /**
+         * @return true if the state is shared with other processes.
+         */
+        boolean isShared() {
+                return false;
+        }
+
+        /**
+         * counts a failure towards a failure count shared with other processes.
+         *
+         * @return true if failureThreshold failures were counted within failureThresholdTimeFrameMs. always false unless shared.
+         */
+        boolean addSharedFailure(long now, long failureThresholdTimeFrameMs, int failureThreshold) {
+                return false;
+        }
+
+        /**
+         * The state word together with the bookkeeping of its OPEN or HALF_OPEN period.
+         */
+        static final class Values {
+
+                final long word;
+
+                final long lastOpenedTime;
+
+                final long openDurationMs;
+
+                final int consecutiveReopens;
+
+                final long halfOpenedTime;
+
+                Values(long word, long lastOpenedTime, long openDurationMs, int consecutiveReopens, long halfOpenedTime) {
+                        this.word = word;
+                        this.lastOpenedTime = lastOpenedTime;
+                        this.openDurationMs = openDurationMs;
+                        this.consecutiveReopens = consecutiveReopens;
+                        this.halfOpenedTime = halfOpenedTime;
+                }
+
+                Values withWord(long word) {
+                        return new Values(word, lastOpenedTime, openDurationMs, consecutiveReopens, halfOpenedTime);
+                }
+        }
+}
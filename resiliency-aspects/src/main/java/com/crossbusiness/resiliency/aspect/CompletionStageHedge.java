@@ -0,0 +1,224 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Hedges a call that returns a {@link CompletionStage} without holding a thread while the first attempt runs.
+ * <p/>
+ * If the stage of the first attempt is not complete after the hedging delay, and the budget allows, a second
+ * attempt is started on the executor. The returned future completes with the first successful result. It fails
+ * only when both attempts failed, with the exception of the last one.
+ * <p/>
+ * The stages returned by the method are never cancelled, since the method may hand the same stage to other callers.
+ * Only the task of the second attempt is: it does not start once the first attempt won, and is interrupted while
+ * still in the call if the executor is an {@link ExecutorService}.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class CompletionStageHedge {
+
+        private static final Logger logger = LoggerFactory.getLogger(CompletionStageHedge.class);
+
+        private CompletionStageHedge() {
+        }
+
+        /**
+         * @param pjp        the call, proceeded again for the second attempt
+         * @param stage      returned by the first attempt
+         * @param start      nanoTime the first attempt started at
+         * @param delayNanos delay before the second attempt
+         * @param budget     hedging budget of the call
+         * @param latency    records the latency of successful calls
+         * @param executor   runs the second attempt
+         * @param timer      times the second attempt
+         * @return a future completed by the first successful attempt
+         */
+        public static CompletableFuture<Object> hedge(ProceedingJoinPoint pjp, CompletionStage<?> stage, long start,
+                                                      long delayNanos, RetryBudget budget, LatencyHistogram latency,
+                                                      Executor executor, TimingWheel timer) {
+                Race race = new Race(pjp, start, budget, latency, executor, DeadlineContext.current().getDeadline());
+                race.timeout = timer.schedule(race, delayNanos, TimeUnit.NANOSECONDS);
+                stage.whenComplete(race.first);
+                return race.result;
+        }
+
+        private static final class Race implements Runnable {
+
+                private final CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+                private final ProceedingJoinPoint pjp;
+
+                private final long start;
+
+                private final RetryBudget budget;
+
+                private final LatencyHistogram latency;
+
+                private final Executor executor;
+
+                private final long deadline;
+
+                // attempts that may still succeed, 0 once the race is decided by failures
+                private final AtomicInteger running = new AtomicInteger(1);
+
+                private volatile TimingWheel.Timeout timeout;
+
+                // the second attempt as submitted by this race, null unless the executor is an ExecutorService
+                private volatile Future<?> secondTask;
+
+                private final BiConsumer<Object, Throwable> first = new BiConsumer<Object, Throwable>() {
+                        @Override
+                        public void accept(Object value, Throwable throwable) {
+                                complete(value, throwable, true);
+                        }
+                };
+
+                private final BiConsumer<Object, Throwable> second = new BiConsumer<Object, Throwable>() {
+                        @Override
+                        public void accept(Object value, Throwable throwable) {
+                                complete(value, throwable, false);
+                        }
+                };
+
+                private final Runnable secondAttempt = new Runnable() {
+                        @Override
+                        @SuppressWarnings("unchecked")
+                        public void run() {
+                                if (result.isDone()) {
+                                        return;
+                                }
+                                DeadlineContext deadlineContext = DeadlineContext.current();
+                                long previousDeadline = deadlineContext.set(deadline);
+                                try {
+                                        Object output = pjp.proceed();
+                                        if (output instanceof CompletionStage) {
+                                                ((CompletionStage<Object>) output).whenComplete(second);
+                                        } else {
+                                                second.accept(output, null);
+                                        }
+                                } catch (Throwable t) {
+                                        second.accept(null, t);
+                                } finally {
+                                        deadlineContext.set(previousDeadline);
+                                }
+                        }
+                };
+
+                Race(ProceedingJoinPoint pjp, long start, RetryBudget budget,
+                     LatencyHistogram latency, Executor executor, long deadline) {
+                        this.pjp = pjp;
+                        this.start = start;
+                        this.budget = budget;
+                        this.latency = latency;
+                        this.executor = executor;
+                        this.deadline = deadline;
+                }
+
+                /**
+                 * hedging delay has passed.
+                 */
+                @Override
+                public void run() {
+                        if (result.isDone() || !budget.tryRetry()) {
+                                return;
+                        }
+                        for (;;) {
+                                int current = running.get();
+                                if (current == 0) {
+                                        return;
+                                }
+                                if (running.compareAndSet(current, current + 1)) {
+                                        break;
+                                }
+                        }
+                        logger.debug("{} not complete after hedging delay, starting a second attempt", pjp.getSignature());
+                        try {
+                                if (executor instanceof ExecutorService) {
+                                        secondTask = ((ExecutorService) executor).submit(secondAttempt);
+                                        if (result.isDone()) {
+                                                cancelSecondTask();
+                                        }
+                                } else {
+                                        executor.execute(secondAttempt);
+                                }
+                        } catch (RejectedExecutionException ex) {
+                                second.accept(null, ex);
+                        }
+                }
+
+                private void complete(Object value, Throwable throwable, boolean firstAttempt) {
+                        if (throwable == null) {
+                                // the loser goes first, so it is cancelled by the time the caller sees the result
+                                if (!result.isDone()) {
+                                        cancelTimeout();
+                                        if (firstAttempt) {
+                                                cancelSecondTask();
+                                        }
+                                }
+                                if (result.complete(value)) {
+                                        latency.record(System.nanoTime() - start);
+                                        budget.onSuccess();
+                                }
+                                return;
+                        }
+                        // the other attempt may still succeed
+                        if (running.decrementAndGet() == 0) {
+                                cancelTimeout();
+                                result.completeExceptionally(throwable instanceof CompletionException && throwable.getCause() != null
+                                        ? throwable.getCause() : throwable);
+                        }
+                }
+
+                private void cancelTimeout() {
+                        TimingWheel.Timeout t = timeout;
+                        if (t != null) {
+                                t.cancel();
+                        }
+                }
+
+                private void cancelSecondTask() {
+                        Future<?> task = secondTask;
+                        if (task != null) {
+                                task.cancel(true);
+                        }
+                }
+        }
+}
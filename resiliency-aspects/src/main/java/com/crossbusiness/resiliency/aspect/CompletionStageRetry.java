@@ -0,0 +1,219 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import com.crossbusiness.resiliency.annotation.Retry;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+
+/**
+ * Retries a call that returns a {@link CompletionStage} without holding a thread between attempts.
+ * <p/>
+ * When the stage fails with a retryable exception, the next attempt is timed on a shared {@link TimingWheel} and
+ * then handed to an executor, the common {@link ForkJoinPool} unless one is given. The returned future completes
+ * with the first successful result, or with the last exception once the attempts or the deadline of the caller run
+ * out, or once the next attempt cannot finish in time or the retry budget is spent. Each attempt runs under the deadline the first one was called with.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class CompletionStageRetry {
+
+        private static final Logger logger = LoggerFactory.getLogger(CompletionStageRetry.class);
+
+        private static final TimingWheel timer = new TimingWheel(threadFactory(), 1, TimeUnit.MILLISECONDS, 1024);
+
+        private CompletionStageRetry() {
+        }
+
+        private static CustomizableThreadFactory threadFactory() {
+                CustomizableThreadFactory tf = new CustomizableThreadFactory("sumo-retry-timer-");
+                tf.setDaemon(true);
+                tf.setThreadGroupName("resiliency");
+                return tf;
+        }
+
+        /**
+         * @param pjp        the call, proceeded again for every attempt
+         * @param stage      returned by the latest attempt
+         * @param classifier tells the retryable exceptions
+         * @param numAttempts attempts made so far
+         * @param attempts   maximum number of retries
+         * @param retryConfig policy of the call, for the delay between attempts
+         * @param budget     retry budget of the call, null if it has none
+         * @param statistics latency of the attempts, tells if the next one fits before the deadline
+         * @param executor   runs the attempts, null for the common pool
+         * @param returnType declared return type of the method
+         * @return a future completed with the outcome of the attempts, or the stage as is if the method cannot
+         * return a {@link CompletableFuture}
+         */
+        public static Object retry(ProceedingJoinPoint pjp, CompletionStage<?> stage, ExceptionClassifier classifier,
+                                   int numAttempts, int attempts, Retry retryConfig, RetryBudget budget, RetryStatistics statistics, Executor executor,
+                                   Class<?> returnType) {
+                if (!returnType.isAssignableFrom(CompletableFuture.class)) {
+                        logger.warn("{} returns a {} that cannot be retried asynchronously", pjp.getSignature(), stage.getClass().getName());
+                        return stage;
+                }
+                Attempts retries = new Attempts(pjp, classifier, numAttempts, attempts, retryConfig, budget, statistics,
+                        executor != null ? executor : ForkJoinPool.commonPool(), DeadlineContext.current().getDeadline());
+                stage.whenComplete(retries);
+                return retries.result;
+        }
+
+        private static final class Attempts implements BiConsumer<Object, Throwable>, Runnable {
+
+                private final CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+                private final ProceedingJoinPoint pjp;
+
+                private final ExceptionClassifier classifier;
+
+                private final int attempts;
+
+                private final Retry retryConfig;
+
+                private final RetryBudget budget;
+
+                private final RetryStatistics statistics;
+
+                private final Executor executor;
+
+                private final long deadline;
+
+                // attempts are sequential, each one is published to the next by the future or the executor
+                private int numAttempts;
+
+                private long delay;
+
+                // nanoTime the latest attempt started at, about when its stage was returned for the first one
+                private long attemptStart = System.nanoTime();
+
+                private final Runnable handOff = new Runnable() {
+                        @Override
+                        public void run() {
+                                try {
+                                        executor.execute(Attempts.this);
+                                } catch (RejectedExecutionException ex) {
+                                        result.completeExceptionally(ex);
+                                }
+                        }
+                };
+
+                Attempts(ProceedingJoinPoint pjp, ExceptionClassifier classifier, int numAttempts, int attempts,
+                         Retry retryConfig, RetryBudget budget, RetryStatistics statistics, Executor executor,
+                         long deadline) {
+                        this.pjp = pjp;
+                        this.classifier = classifier;
+                        this.numAttempts = numAttempts;
+                        this.attempts = attempts;
+                        this.retryConfig = retryConfig;
+                        this.budget = budget;
+                        this.statistics = statistics;
+                        this.executor = executor;
+                        this.deadline = deadline;
+                }
+
+                /**
+                 * outcome of an attempt.
+                 */
+                @Override
+                public void accept(Object value, Throwable throwable) {
+                        if (throwable == null) {
+                                statistics.recordSuccess(attemptStart);
+                                if (budget != null) {
+                                        budget.onSuccess();
+                                }
+                                result.complete(value);
+                                return;
+                        }
+                        Throwable ex = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                        if (!classifier.matches(ex)) {
+                                result.completeExceptionally(ex);
+                                return;
+                        }
+                        if (numAttempts > attempts) {
+                                logger.warn("Exceeded maximum retries ({}), completing with Exception [{}]", attempts, ex);
+                                result.completeExceptionally(ex);
+                                return;
+                        }
+                        delay = RetryBackoff.delay(retryConfig, numAttempts, delay);
+                        long delayNanos = retryConfig.unit().toNanos(delay);
+                        if (!statistics.attemptFits(deadline, delayNanos)) {
+                                logger.warn("Next attempt cannot finish before the deadline, completing with Exception [{}] after {} attempts",
+                                        ex, numAttempts);
+                                result.completeExceptionally(ex);
+                                return;
+                        }
+                        if (budget != null && !budget.tryRetry()) {
+                                logger.warn("Retry budget {} spent after {} attempts, completing with Exception [{}]",
+                                        new Object[]{budget.getName(), numAttempts, ex});
+                                result.completeExceptionally(ex);
+                                return;
+                        }
+                        logger.info("Caught Exception: [{}]. \n\t\t Attempt#: {}, Will retry after {} {}",
+                                new Object[]{ex, numAttempts, delay, retryConfig.unit()});
+                        if (delayNanos > 0) {
+                                timer.schedule(handOff, delayNanos, TimeUnit.NANOSECONDS);
+                        } else {
+                                handOff.run();
+                        }
+                }
+
+                /**
+                 * next attempt.
+                 */
+                @Override
+                @SuppressWarnings("unchecked")
+                public void run() {
+                        numAttempts++;
+                        attemptStart = System.nanoTime();
+                        DeadlineContext deadlineContext = DeadlineContext.current();
+                        long previousDeadline = deadlineContext.set(deadline);
+                        try {
+                                Object output = pjp.proceed();
+                                if (output instanceof CompletionStage) {
+                                        ((CompletionStage<Object>) output).whenComplete(this);
+                                } else {
+                                        accept(output, null);
+                                }
+                        } catch (Throwable t) {
+                                accept(null, t);
+                        } finally {
+                                deadlineContext.set(previousDeadline);
+                        }
+                }
+        }
+}
@@ -0,0 +1,106 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Bounds the asynchronous part of a call that returns a {@link CompletionStage}.
+ * <p/>
+ * The caller gets a new {@link CompletableFuture} completed with the stage. A timer on a {@link TimingWheel} completes
+ * that copy exceptionally with a {@link TimeoutException} once the deadline passes, and is cancelled as soon as the
+ * copy completes. The stage returned by the method is left alone, since it may be cached or shared with other callers
+ * that are not bound by this timeout. No thread waits for the result or gets interrupted, so any number of pending
+ * calls costs one timer each.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class CompletionStageTimeout {
+
+        private static final Logger logger = LoggerFactory.getLogger(CompletionStageTimeout.class);
+
+        private CompletionStageTimeout() {
+        }
+
+        /**
+         * @param wheel      timer to use
+         * @param stage      returned by the call
+         * @param returnType declared return type of the method
+         * @param name       of the method, for messages
+         * @param deadline   {@link System#nanoTime()} by which the stage must complete
+         * @param timeoutMs  timeout of the call, for messages
+         * @return a new future completed with the stage if the method can return one, otherwise the stage as is
+         */
+        @SuppressWarnings("unchecked")
+        public static Object withTimeout(TimingWheel wheel, CompletionStage<?> stage, Class<?> returnType,
+                                         final String name, long deadline, final long timeoutMs) {
+                if (stage instanceof CompletableFuture && ((CompletableFuture<?>) stage).isDone()) {
+                        return stage;
+                }
+                final CompletableFuture<Object> future;
+                if (returnType.isAssignableFrom(CompletableFuture.class)) {
+                        future = new CompletableFuture<Object>();
+                        ((CompletionStage<Object>) stage).whenComplete(new BiConsumer<Object, Throwable>() {
+                                @Override
+                                public void accept(Object value, Throwable throwable) {
+                                        if (throwable != null) {
+                                                future.completeExceptionally(throwable);
+                                        } else {
+                                                future.complete(value);
+                                        }
+                                }
+                        });
+                } else {
+                        logger.warn("{} returns a {} that cannot be completed on timeout", name, stage.getClass().getName());
+                        return stage;
+                }
+                if (future.isDone()) {
+                        return future;
+                }
+                final TimingWheel.Timeout timeout = wheel.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                                if (future.completeExceptionally(new TimeoutException("Method " + name + " exceeded timeout of " + timeoutMs + " ms"))) {
+                                        logger.warn("{}: completed exceptionally on {}ms timeout", name, timeoutMs);
+                                }
+                        }
+                }, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                future.whenComplete(new BiConsumer<Object, Throwable>() {
+                        @Override
+                        public void accept(Object value, Throwable throwable) {
+                                timeout.cancel();
+                        }
+                });
+                return future;
+        }
+}
@@ -0,0 +1,106 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Deadline of the guarded call running on the current thread.
+ * <p/>
+ * {@code @Timeout} and {@code @Timeout2} set it for the duration of a call, to the earlier of their own timeout and
+ * the deadline already set by an enclosing call, so nested calls share the outer budget instead of each getting
+ * their full timeout. {@code @Timeout2} carries it over to the thread that runs the method, and {@code @Retry}
+ * does not start an attempt it could not finish in time.
+ * <p/>
+ * Deadlines are {@link System#nanoTime()} values; {@link #NONE} means no deadline.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class DeadlineContext {
+
+        public static final long NONE = Long.MAX_VALUE;
+
+        private static final ThreadLocal<DeadlineContext> CONTEXT = new ThreadLocal<DeadlineContext>() {
+                @Override
+                protected DeadlineContext initialValue() {
+                        return new DeadlineContext();
+                }
+        };
+
+        private long deadline = NONE;
+
+        private DeadlineContext() {
+        }
+
+        /**
+         * @return the context of the current thread
+         */
+        public static DeadlineContext current() {
+                return CONTEXT.get();
+        }
+
+        /**
+         * @return the deadline set on this thread, or {@link #NONE}
+         */
+        public long getDeadline() {
+                return deadline;
+        }
+
+        /**
+         * @return time left until the deadline, zero or less once it passed, {@link Long#MAX_VALUE} without one
+         */
+        public long remaining(TimeUnit unit) {
+                if (deadline == NONE) {
+                        return Long.MAX_VALUE;
+                }
+                long remainingNanos = deadline - System.nanoTime();
+                return remainingNanos > 0 ? unit.convert(remainingNanos, TimeUnit.NANOSECONDS) : remainingNanos;
+        }
+
+        /**
+         * @return the earlier of the current deadline and one the given timeout from now
+         */
+        public long deadlineAfter(long timeout, TimeUnit unit) {
+                long now = System.nanoTime();
+                long timeoutNanos = unit.toNanos(timeout);
+                if (deadline != NONE && deadline - now <= timeoutNanos) {
+                        return deadline;
+                }
+                // saturated timeouts mean no deadline at all
+                return timeoutNanos >= NONE - Math.max(now, 0) ? deadline : now + timeoutNanos;
+        }
+
+        /**
+         * sets the deadline of the current call.
+         *
+         * @return the previous deadline, to be set again when the call returns
+         */
+        public long set(long deadline) {
+                long previous = this.deadline;
+                this.deadline = deadline;
+                return previous;
+        }
+}
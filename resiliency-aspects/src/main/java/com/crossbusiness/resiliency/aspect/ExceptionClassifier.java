@@ -0,0 +1,113 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.lang.annotation.Annotation;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aspectj.lang.JoinPoint;
+
+
+/**
+ * Decides whether an exception is covered by a policy: an include list (failureIndications, retryable or
+ * fallbackable exceptions) and an exclude list that wins over it. Subclasses are covered too.
+ * <p/>
+ * The verdict is cached per exception class in a {@link ClassValue}, so once a policy has seen an exception type,
+ * classifying it again is one lookup instead of a walk over both lists with isAssignableFrom. Aspects keep one
+ * classifier per join point in a {@link Cache}.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class ExceptionClassifier {
+
+        // the annotation the lists come from, compared by identity by the cache
+        private final Annotation policy;
+
+        private final Class<? extends Throwable>[] includes;
+
+        private final Class<? extends Throwable>[] excludes;
+
+        private final ClassValue<Boolean> classification = new ClassValue<Boolean>() {
+                @Override
+                protected Boolean computeValue(Class<?> type) {
+                        return classify(type);
+                }
+        };
+
+        public ExceptionClassifier(Annotation policy, Class<? extends Throwable>[] includes, Class<? extends Throwable>[] excludes) {
+                this.policy = policy;
+                this.includes = includes;
+                this.excludes = excludes;
+        }
+
+        /**
+         * @return true if the exception is an instance of one of the included types and of none of the excluded ones.
+         */
+        public boolean matches(Throwable throwable) {
+                return classification.get(throwable.getClass());
+        }
+
+        private Boolean classify(Class<?> type) {
+                for (Class<? extends Throwable> exclude : excludes) {
+                        if (exclude.isAssignableFrom(type)) {
+                                return Boolean.FALSE;
+                        }
+                }
+                for (Class<? extends Throwable> include : includes) {
+                        if (include.isAssignableFrom(type)) {
+                                return Boolean.TRUE;
+                        }
+                }
+                return Boolean.FALSE;
+        }
+
+        public Annotation getPolicy() {
+                return policy;
+        }
+
+        /**
+         * classifiers by join point. A join point advised with a different annotation instance than the cached
+         * classifier was built from (e.g. a class level annotation of another subclass) gets a new one.
+         */
+        public static final class Cache {
+
+                // StaticPart does not override equals/hashCode, so lookups are by identity.
+                private final ConcurrentMap<JoinPoint.StaticPart, ExceptionClassifier> classifiers = new ConcurrentHashMap<JoinPoint.StaticPart, ExceptionClassifier>();
+
+                /**
+                 * @return the classifier of the join point, or null if there is none for the given annotation yet.
+                 */
+                public ExceptionClassifier get(JoinPoint.StaticPart joinPoint, Annotation policy) {
+                        ExceptionClassifier classifier = classifiers.get(joinPoint);
+                        return classifier != null && classifier.getPolicy() == policy ? classifier : null;
+                }
+
+                public ExceptionClassifier put(JoinPoint.StaticPart joinPoint, ExceptionClassifier classifier) {
+                        classifiers.put(joinPoint, classifier);
+                        return classifier;
+                }
+        }
+}
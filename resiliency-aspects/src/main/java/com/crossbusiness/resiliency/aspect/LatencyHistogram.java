@@ -0,0 +1,184 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Latency histogram of the recent calls of a method, for percentiles such as a hedging delay.
+ * <p/>
+ * Latencies fall into log-linear buckets, 16 per power of two, so a percentile is off by at most 1/16th.
+ * Recording is a single atomic increment. The histogram covers the current and the previous window: when a
+ * window has passed, a fresh one replaces the oldest, so old latencies stop counting after one to two windows.
+ * <p/>
+ * {@link #percentile(double)} walks all buckets. Calls on a hot path use {@link #estimate(double, long)}, which
+ * reuses the last result for a sixteenth of a window.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class LatencyHistogram {
+
+        private static final int SUB_BUCKETS = 16;
+
+        private static final int BUCKETS = (64 - 4) * SUB_BUCKETS;
+
+        private final long windowNanos;
+
+        private final AtomicReference<Window> current;
+
+        private volatile Estimate estimate;
+
+        /**
+         * @param window time a latency counts for, at least
+         * @param unit   unit of window
+         */
+        public LatencyHistogram(long window, TimeUnit unit) {
+                this.windowNanos = unit.toNanos(window);
+                this.current = new AtomicReference<Window>(new Window(System.nanoTime(), new AtomicLongArray(BUCKETS)));
+        }
+
+        /**
+         * @param latencyNanos latency of a call
+         */
+        public void record(long latencyNanos) {
+                window(System.nanoTime()).counts.incrementAndGet(bucket(Math.max(0, latencyNanos)));
+        }
+
+        /**
+         * @return calls recorded in the current and the previous window
+         */
+        public long count() {
+                Window window = window(System.nanoTime());
+                long count = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                        count += window.counts.get(i) + window.previous.get(i);
+                }
+                return count;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return latency in nanoseconds that the given percent of recent calls did not exceed, 0 without calls
+         */
+        public long percentile(double percentile) {
+                Window window = window(System.nanoTime());
+                long[] counts = new long[BUCKETS];
+                long total = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                        counts[i] = window.counts.get(i) + window.previous.get(i);
+                        total += counts[i];
+                }
+                if (total == 0) {
+                        return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+                long seen = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                        seen += counts[i];
+                        if (seen >= rank) {
+                                return upperBound(i);
+                        }
+                }
+                return upperBound(BUCKETS - 1);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @param minCount   calls that must have been recorded for an estimate
+         * @return recent percentile of the latency in nanoseconds, or -1 with fewer than minCount calls
+         */
+        public long estimate(double percentile, long minCount) {
+                long now = System.nanoTime();
+                Estimate last = estimate;
+                if (last == null || last.percentile != percentile || now - last.at >= windowNanos / SUB_BUCKETS) {
+                        last = new Estimate(percentile, count() >= minCount ? percentile(percentile) : -1, now);
+                        estimate = last;
+                }
+                return last.value;
+        }
+
+        private Window window(long now) {
+                Window window = current.get();
+                if (now - window.start >= windowNanos) {
+                        // one thread rotates, the others carry on with whichever window they see
+                        Window next = new Window(now, now - window.start >= 2 * windowNanos ? new AtomicLongArray(BUCKETS) : window.counts);
+                        if (current.compareAndSet(window, next)) {
+                                return next;
+                        }
+                        return current.get();
+                }
+                return window;
+        }
+
+        static int bucket(long value) {
+                if (value < SUB_BUCKETS) {
+                        return (int) value;
+                }
+                int exponent = 63 - Long.numberOfLeadingZeros(value);
+                int sub = (int) (value >>> (exponent - 4)) & (SUB_BUCKETS - 1);
+                return (exponent - 3) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+                if (bucket < SUB_BUCKETS) {
+                        return bucket;
+                }
+                int exponent = bucket / SUB_BUCKETS + 3;
+                long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 4);
+                return lower + (1L << (exponent - 4)) - 1;
+        }
+
+        private static final class Estimate {
+
+                final double percentile;
+
+                final long value;
+
+                final long at;
+
+                Estimate(double percentile, long value, long at) {
+                        this.percentile = percentile;
+                        this.value = value;
+                        this.at = at;
+                }
+        }
+
+        private static final class Window {
+
+                final long start;
+
+                final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+                final AtomicLongArray previous;
+
+                Window(long start, AtomicLongArray previous) {
+                        this.start = start;
+                        this.previous = previous;
+                }
+        }
+}
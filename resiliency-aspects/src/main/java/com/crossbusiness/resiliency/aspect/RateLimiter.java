@@ -0,0 +1,141 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Rate limiter of the RATE {@link com.crossbusiness.resiliency.annotation.Governor}: no more than
+ * <code>limit</code> calls in any <code>period</code>, as a sliding window.
+ * <p/>
+ * The limiter remembers when each of the last <code>limit</code> calls was allowed, in a ring of slots, and
+ * allows a call only if the oldest of them is at least one <code>period</code> old. Call n claims its slot with a
+ * CAS from the time of call n - limit to its own time, then moves the sequence on to n + 1. Each slot also carries
+ * the parity of its round, so a caller that finds a slot claimed before the sequence moved on helps move it on
+ * instead of mistaking it for an old call.
+ * <p/>
+ * A caller reads the clock after the sequence, so the times of the calls grow with their sequence and no window
+ * of one period can hold more than <code>limit</code> of them. There is no refill task and no lock. The ring takes
+ * one <code>long</code> per call of the limit.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class RateLimiter {
+
+        private final int limit;
+
+        private final long periodNanos;
+
+        private final long origin = System.nanoTime();
+
+        // number of calls allowed so far
+        private final AtomicLong sequence = new AtomicLong();
+
+        // per slot: time of the call since origin, shifted left by one, and the parity of its round in the low bit
+        private final AtomicLongArray slots;
+
+        /**
+         * @param limit  calls allowed per period
+         * @param period period of time considered
+         * @param unit   unit of period
+         */
+        public RateLimiter(int limit, long period, TimeUnit unit) {
+                if (limit <= 0 || period <= 0) {
+                        throw new IllegalArgumentException("rate limit needs a positive limit and period: " + limit + " per " + period + " " + unit);
+                }
+                this.limit = limit;
+                this.periodNanos = unit.toNanos(period);
+                this.slots = new AtomicLongArray(limit);
+                // round -1: calls a period before the start, so the first limit calls are allowed
+                long never = ((-periodNanos) << 1) | 1;
+                for (int i = 0; i < limit; i++) {
+                        slots.set(i, never);
+                }
+        }
+
+        /**
+         * @return true if the call is allowed now
+         */
+        public boolean tryAcquire() {
+                return nanosUntilAllowed() == 0;
+        }
+
+        /**
+         * waits until the call is allowed.
+         */
+        public void acquire() throws InterruptedException {
+                for (;;) {
+                        long waitNanos = nanosUntilAllowed();
+                        if (waitNanos == 0) {
+                                return;
+                        }
+                        TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+        }
+
+        /**
+         * allows the call if it fits the window.
+         *
+         * @return 0 if the call is allowed, else how long until it may be
+         */
+        private long nanosUntilAllowed() {
+                for (;;) {
+                        long n = sequence.get();
+                        int slot = (int) (n % limit);
+                        long parity = (n / limit) & 1;
+                        long previous = slots.get(slot);
+                        if ((previous & 1) == parity) {
+                                // call n claimed its slot but has not moved the sequence on yet
+                                sequence.compareAndSet(n, n + 1);
+                                continue;
+                        }
+                        // after reading the sequence, so no earlier call has a later time
+                        long now = System.nanoTime() - origin;
+                        long waitNanos = (previous >> 1) + periodNanos - now;
+                        if (waitNanos > 0) {
+                                if (sequence.get() == n) {
+                                        return waitNanos;
+                                }
+                                continue;
+                        }
+                        if (slots.compareAndSet(slot, previous, (now << 1) | parity)) {
+                                sequence.compareAndSet(n, n + 1);
+                                return 0;
+                        }
+                }
+        }
+
+        public int getLimit() {
+                return limit;
+        }
+
+        @Override
+        public String toString() {
+                return "RateLimiter[" + limit + " per " + periodNanos + " ns]";
+        }
+}
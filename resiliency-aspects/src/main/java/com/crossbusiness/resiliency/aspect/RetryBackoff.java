@@ -0,0 +1,86 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.crossbusiness.resiliency.annotation.Retry;
+
+
+/**
+ * Computes the delay before the next attempt of a {@link Retry} call.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class RetryBackoff {
+
+        private RetryBackoff() {
+        }
+
+        /**
+         * @param retryConfig   policy of the call
+         * @param attempt       number of the attempt that just failed, from 1
+         * @param previousDelay delay before that attempt, 0 for the first one
+         * @return delay in the time units of the policy
+         */
+        public static long delay(Retry retryConfig, int attempt, long previousDelay) {
+                return delay(retryConfig.backoff(), retryConfig.delay(), retryConfig.multiplier(), retryConfig.maxDelay(),
+                        attempt, previousDelay, ThreadLocalRandom.current());
+        }
+
+        /**
+         * @param backoff       strategy
+         * @param delay         base delay
+         * @param multiplier    growth factor of the exponential strategies
+         * @param maxDelay      upper bound, 0 for none
+         * @param attempt       number of the attempt that just failed, from 1
+         * @param previousDelay delay before that attempt, 0 for the first one
+         * @param random        source of the jitter
+         * @return the delay
+         */
+        public static long delay(Retry.Backoff backoff, long delay, double multiplier, long maxDelay,
+                                 int attempt, long previousDelay, Random random) {
+                double cap = maxDelay > 0 ? maxDelay : Long.MAX_VALUE;
+                switch (backoff) {
+                        case EXPONENTIAL:
+                                return (long) exponential(delay, multiplier, attempt, cap);
+                        case FULL_JITTER:
+                                return (long) (random.nextDouble() * exponential(delay, multiplier, attempt, cap));
+                        case EQUAL_JITTER:
+                                double half = exponential(delay, multiplier, attempt, cap) / 2;
+                                return (long) (half + random.nextDouble() * half);
+                        case DECORRELATED_JITTER:
+                                double upper = Math.max(delay, 3d * Math.max(previousDelay, delay));
+                                return (long) Math.min(cap, delay + random.nextDouble() * (upper - delay));
+                        default:
+                                return (long) Math.min(cap, delay);
+                }
+        }
+
+        private static double exponential(long delay, double multiplier, int attempt, double cap) {
+                return Math.min(cap, delay * Math.pow(multiplier, attempt - 1));
+        }
+}
@@ -0,0 +1,206 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.crossbusiness.resiliency.annotation.Retry;
+
+import org.aspectj.lang.JoinPoint;
+
+
+/**
+ * Retry budget: a token bucket that caps retries at a ratio of the successful calls.
+ * <p/>
+ * Every successful call deposits {@link Retry#budgetRatio()} of a retry, and every retry withdraws a whole one.
+ * The balance is capped at what {@value #CAPACITY_CALLS} successful calls earn, so a long healthy spell does not
+ * bank enough retries to hammer a dependency once it goes down. When the balance is spent, a floor of
+ * {@link Retry#budgetMinRetriesPerSecond()} still lets rarely called methods retry.
+ * <p/>
+ * A successful call costs one volatile read while the bucket is full and one atomic add otherwise, the retry
+ * path and the floor are CAS loops. Concurrent deposits may overfill the bucket by a few retries.
+ * <p/>
+ * {@link com.crossbusiness.resiliency.annotation.Hedge} uses the same bucket to cap its second attempts.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class RetryBudget {
+
+        /**
+         * successful calls whose deposits the bucket holds at most.
+         */
+        public static final int CAPACITY_CALLS = 1000;
+
+        // balance in thousandths of a retry
+        private static final long RETRY = 1000;
+
+        private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+        private final String name;
+
+        private final long deposit;
+
+        private final long capacity;
+
+        private final int minRetriesPerSecond;
+
+        private final long origin = System.nanoTime();
+
+        // starts full, a freshly deployed node may retry before its first success
+        private final AtomicLong balance;
+
+        // second since origin in the upper half, retries taken from the floor in that second in the lower half
+        private final AtomicLong floor = new AtomicLong();
+
+        private final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * @param name                budget name, the method signature unless shared
+         * @param ratio               retries allowed per successful call
+         * @param minRetriesPerSecond retries allowed per second once the balance is spent
+         */
+        public RetryBudget(String name, double ratio, int minRetriesPerSecond) {
+                if (ratio <= 0) {
+                        throw new IllegalArgumentException("retry budget ratio must be positive: " + ratio);
+                }
+                this.name = name;
+                this.deposit = Math.max(1, Math.round(ratio * RETRY));
+                this.capacity = Math.max(RETRY, deposit * CAPACITY_CALLS);
+                this.minRetriesPerSecond = Math.max(0, minRetriesPerSecond);
+                this.balance = new AtomicLong(capacity);
+        }
+
+        /**
+         * records a successful call.
+         */
+        public void onSuccess() {
+                if (balance.get() < capacity) {
+                        balance.getAndAdd(deposit);
+                }
+        }
+
+        /**
+         * takes one retry from the budget.
+         *
+         * @return false if the budget is spent and the failure should be given up
+         */
+        public boolean tryRetry() {
+                for (;;) {
+                        long current = balance.get();
+                        if (current < RETRY) {
+                                break;
+                        }
+                        if (balance.compareAndSet(current, current - RETRY)) {
+                                return true;
+                        }
+                }
+                if (tryFloor()) {
+                        return true;
+                }
+                rejected.incrementAndGet();
+                return false;
+        }
+
+        private boolean tryFloor() {
+                long second = (System.nanoTime() - origin) / NANOS_PER_SECOND;
+                for (;;) {
+                        long current = floor.get();
+                        long used = (current >>> 32) == second ? current & 0xFFFFFFFFL : 0;
+                        if (used >= minRetriesPerSecond) {
+                                return false;
+                        }
+                        if (floor.compareAndSet(current, (second << 32) | (used + 1))) {
+                                return true;
+                        }
+                }
+        }
+
+        public String getName() {
+                return name;
+        }
+
+        /**
+         * @return retries left in the bucket, not counting the floor
+         */
+        public long getAvailableRetries() {
+                return balance.get() / RETRY;
+        }
+
+        /**
+         * @return retries given up so far because the budget was spent
+         */
+        public long getRejectedRetries() {
+                return rejected.get();
+        }
+
+        @Override
+        public String toString() {
+                return "RetryBudget[" + name + ", available=" + getAvailableRetries() + ", rejected=" + getRejectedRetries() + "]";
+        }
+
+        /**
+         * Budgets of the methods of one aspect, one per method or one per {@link Retry#budget()} name.
+         */
+        public static final class Registry {
+
+                private final ConcurrentMap<String, RetryBudget> globalMap = new ConcurrentHashMap<String, RetryBudget>();
+
+                // resolved budgets per join point. StaticPart does not override equals/hashCode, so lookups are by identity.
+                private final ConcurrentMap<JoinPoint.StaticPart, RetryBudget> joinPointMap = new ConcurrentHashMap<JoinPoint.StaticPart, RetryBudget>();
+
+                /**
+                 * @return the budget of the join point, null if the policy has none
+                 */
+                public RetryBudget budgetOf(JoinPoint.StaticPart joinPoint, Retry retryConfig) {
+                        if (!(retryConfig.budgetRatio() > 0)) {
+                                return null;
+                        }
+                        RetryBudget budget = joinPointMap.get(joinPoint);
+                        if (budget == null) {
+                                // first call through this join point: the first policy naming a shared budget configures it
+                                String name = retryConfig.budget().isEmpty() ? joinPoint.getSignature().toLongString() : retryConfig.budget();
+                                budget = globalMap.get(name);
+                                if (budget == null) {
+                                        RetryBudget created = new RetryBudget(name, retryConfig.budgetRatio(), retryConfig.budgetMinRetriesPerSecond());
+                                        budget = globalMap.putIfAbsent(name, created);
+                                        if (budget == null) {
+                                                budget = created;
+                                        }
+                                }
+                                joinPointMap.putIfAbsent(joinPoint, budget);
+                        }
+                        return budget;
+                }
+
+                public Map<String, RetryBudget> getBudgets() {
+                        return Collections.unmodifiableMap(globalMap);
+                }
+        }
+}
@@ -0,0 +1,93 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Latency of the successful attempts of a retried method, to tell whether another attempt can still finish
+ * before the deadline of the caller.
+ * <p/>
+ * An attempt fits if the remaining time exceeds the delay before it plus the median latency of the recent
+ * attempts. Until {@value #MIN_SAMPLES} attempts have been observed, the delay alone has to fit. Retries that did
+ * not fit are counted.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class RetryStatistics {
+
+        /**
+         * successful attempts observed before their latency counts.
+         */
+        public static final int MIN_SAMPLES = 20;
+
+        private static final double EXPECTED_PERCENTILE = 50;
+
+        private final LatencyHistogram latency = new LatencyHistogram(1, TimeUnit.MINUTES);
+
+        private final AtomicLong retriesAvoided = new AtomicLong();
+
+        /**
+         * records a successful attempt.
+         *
+         * @param start nanoTime the attempt started at
+         */
+        public void recordSuccess(long start) {
+                latency.record(System.nanoTime() - start);
+        }
+
+        /**
+         * @param deadline   nanoTime deadline of the caller, {@link DeadlineContext#NONE} for none
+         * @param delayNanos delay before the next attempt
+         * @return false if the next attempt cannot finish before the deadline, and is counted as avoided
+         */
+        public boolean attemptFits(long deadline, long delayNanos) {
+                if (deadline == DeadlineContext.NONE) {
+                        return true;
+                }
+                long expected = Math.max(0, latency.estimate(EXPECTED_PERCENTILE, MIN_SAMPLES));
+                if (deadline - System.nanoTime() > delayNanos + expected) {
+                        return true;
+                }
+                retriesAvoided.incrementAndGet();
+                return false;
+        }
+
+        /**
+         * @return median latency of the recent successful attempts in nanoseconds, -1 until enough were observed
+         */
+        public long getExpectedLatency() {
+                return latency.estimate(EXPECTED_PERCENTILE, MIN_SAMPLES);
+        }
+
+        /**
+         * @return retries given up because they could not finish before the deadline
+         */
+        public long getRetriesAvoided() {
+                return retriesAvoided.get();
+        }
+}
@@ -0,0 +1,102 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+
+/**
+ * Rate sampled DEBUG logging for per call traces of the aspects.
+ * <p/>
+ * Per call traces are off unless the JVM runs with <code>-Dresiliency.trace=true</code>. The switch is a
+ * static final constant, so guarding a trace with <code>if (SampledLogger.ENABLED &amp;&amp; trace.sample())</code>
+ * is folded away by the JIT and costs nothing when tracing is off. When it is on, at most messagesPerSecond traces
+ * per logger get through to DEBUG; the others are counted and the count is logged once per second.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public final class SampledLogger {
+
+        public static final String TRACE_PROPERTY = "resiliency.trace";
+
+        public static final boolean ENABLED = Boolean.getBoolean(TRACE_PROPERTY);
+
+        private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final Logger log;
+
+        private final int messagesPerSecond;
+
+        // System.nanoTime() the current sampling interval started at
+        private final AtomicLong intervalStart = new AtomicLong(System.nanoTime() - INTERVAL_NANOS);
+
+        private final AtomicInteger sampled = new AtomicInteger();
+
+        private final LongAdder suppressed = new LongAdder();
+
+        public SampledLogger(Logger log, int messagesPerSecond) {
+                this.log = log;
+                this.messagesPerSecond = messagesPerSecond;
+        }
+
+        /**
+         * @return true if the caller may log its trace with {@link #debug(String, Object...)}. counts it as suppressed otherwise.
+         */
+        public boolean sample() {
+                if (!log.isDebugEnabled()) {
+                        return false;
+                }
+                long now = System.nanoTime();
+                long start = intervalStart.get();
+                if (now - start >= INTERVAL_NANOS && intervalStart.compareAndSet(start, now)) {
+                        sampled.set(0);
+                        long count = suppressed.sumThenReset();
+                        if (count > 0) {
+                                log.debug("{} trace messages suppressed by sampling", count);
+                        }
+                }
+                if (sampled.incrementAndGet() <= messagesPerSecond) {
+                        return true;
+                }
+                suppressed.increment();
+                return false;
+        }
+
+        public void debug(String format, Object... arguments) {
+                log.debug(format, arguments);
+        }
+
+        /**
+         * @return traces suppressed in the current sampling interval.
+         */
+        public long getSuppressed() {
+                return suppressed.sum();
+        }
+}
@@ -48,7 +48,8 @@ import org.springframework.stereotype.Component;
         "com.crossbusiness.resiliency.aspect.AbstractRetryAspect+," +
         "com.crossbusiness.resiliency.aspect.AbstractTimeoutAspect+," +
         "com.crossbusiness.resiliency.aspect.AbstractTimeout2Aspect+," +
-        "com.crossbusiness.resiliency.aspect.AbstractAsyncAspect+")
+        "com.crossbusiness.resiliency.aspect.AbstractAsyncAspect+," +
+        "com.crossbusiness.resiliency.aspect.AbstractHedgeAspect+")
 public abstract class SystemArchitecture {
 
     @Pointcut("execution(public * *(..))")
@@ -0,0 +1,372 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Hashed timing wheel that runs short tasks after a delay.
+ * <p/>
+ * Timeouts are hashed into a ring of buckets by their deadline tick; one that lies more than one rotation ahead
+ * carries the number of remaining rotations. Scheduling pushes the timeout on a lock-free stack and cancelling is a
+ * single compare-and-set, so both are O(1) and never touch a shared sorted structure. A single worker thread moves
+ * new timeouts into their buckets and, on every tick, expires the bucket under the cursor, dropping the cancelled
+ * ones. The worker only ticks while timeouts are pending, otherwise it parks until the next one is scheduled.
+ * <p/>
+ * A {@link Timeout} can be scheduled again once it expired or was cancelled, so callers that keep one per slot
+ * schedule without allocating. Its state carries a generation, which keeps a stale bucket entry or a late cancel
+ * from touching the next scheduling.
+ * <p/>
+ * Tasks run on the worker thread and must be short.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+public class TimingWheel {
+
+        private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+        private final ThreadFactory threadFactory;
+
+        private final long tickNanos;
+
+        private final Bucket[] wheel;
+
+        private final int mask;
+
+        // timeouts scheduled since the worker last looked, linked through Timeout.nextScheduled
+        private final AtomicReference<Timeout> scheduled = new AtomicReference<Timeout>();
+
+        // timeouts neither expired nor cancelled
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        private final long startTime = System.nanoTime();
+
+        private volatile Thread worker;
+
+        // ticks processed so far, only touched by the worker
+        private long tick;
+
+        /**
+         * @param threadFactory creates the worker thread, which is started with the first timeout
+         * @param tickDuration  resolution of the wheel
+         * @param unit          unit of tickDuration
+         * @param ticksPerWheel number of buckets, rounded up to a power of two
+         */
+        public TimingWheel(ThreadFactory threadFactory, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+                if (tickDuration <= 0) {
+                        throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+                }
+                this.threadFactory = threadFactory;
+                this.tickNanos = unit.toNanos(tickDuration);
+                int size = Integer.highestOneBit(Math.max(2, ticksPerWheel) - 1) << 1;
+                this.wheel = new Bucket[size];
+                for (int i = 0; i < size; i++) {
+                        wheel[i] = new Bucket();
+                }
+                this.mask = size - 1;
+        }
+
+        /**
+         * runs the task on the worker thread once the delay has elapsed, unless the returned timeout is cancelled first.
+         */
+        public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+                Timeout timeout = new Timeout(task);
+                schedule(timeout, delay, unit);
+                return timeout;
+        }
+
+        /**
+         * schedules a timeout again. If the task of its previous scheduling is still running, waits for it to finish.
+         * A timeout must not be scheduled from two threads at once.
+         *
+         * @throws IllegalStateException if the timeout is still scheduled
+         */
+        public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+                int state;
+                while (status(state = timeout.state) == Timeout.ST_EXPIRING) {
+                        Thread.yield();
+                }
+                if (status(state) == Timeout.ST_SCHEDULED) {
+                        throw new IllegalStateException("timeout is still scheduled");
+                }
+                timeout.timingWheel = this;
+                timeout.deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+                // counted before the worker can see it, so it never goes negative
+                boolean idle = pending.incrementAndGet() == 1;
+                timeout.state = nextGeneration(state) | Timeout.ST_SCHEDULED;
+                if (started.compareAndSet(false, true)) {
+                        start();
+                }
+                if (QUEUED.compareAndSet(timeout, 0, 1)) {
+                        Timeout head;
+                        do {
+                                head = scheduled.get();
+                                timeout.nextScheduled = head;
+                        } while (!scheduled.compareAndSet(head, timeout));
+                }
+                if (idle) {
+                        // the worker may be parked without a deadline
+                        LockSupport.unpark(worker);
+                }
+        }
+
+        /**
+         * @return number of timeouts neither expired nor cancelled
+         */
+        public int pending() {
+                return pending.get();
+        }
+
+        private void start() {
+                Thread thread = threadFactory.newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                                work();
+                        }
+                });
+                worker = thread;
+                thread.start();
+        }
+
+        private void work() {
+                while (true) {
+                        if (pending.get() == 0) {
+                                LockSupport.park(this);
+                                // nothing but stale timeouts can be left in the buckets, catch up with the clock
+                                long elapsed = System.nanoTime() - startTime;
+                                if (pending.get() > 0 && elapsed / tickNanos > tick) {
+                                        for (Bucket bucket : wheel) {
+                                                bucket.clear();
+                                        }
+                                        tick = elapsed / tickNanos;
+                                }
+                                continue;
+                        }
+                        long deadline = (tick + 1) * tickNanos;
+                        long now;
+                        while ((now = System.nanoTime() - startTime) < deadline) {
+                                LockSupport.parkNanos(this, deadline - now);
+                        }
+                        transferScheduled();
+                        wheel[(int) (tick & mask)].expire();
+                        tick++;
+                }
+        }
+
+        private void transferScheduled() {
+                Timeout timeout = scheduled.getAndSet(null);
+                while (timeout != null) {
+                        Timeout next = timeout.nextScheduled;
+                        timeout.nextScheduled = null;
+                        // from here on a new scheduling pushes it again
+                        timeout.queued = 0;
+                        int state = timeout.state;
+                        if (timeout.bucket != null) {
+                                timeout.bucket.remove(timeout);
+                        }
+                        if (status(state) == Timeout.ST_SCHEDULED) {
+                                long calculated = timeout.deadline / tickNanos;
+                                timeout.scheduledState = state;
+                                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                                wheel[(int) (Math.max(calculated, tick) & mask)].add(timeout);
+                        }
+                        timeout = next;
+                }
+        }
+
+        private static int status(int state) {
+                return state & Timeout.STATUS_MASK;
+        }
+
+        private static int nextGeneration(int state) {
+                return (state & ~Timeout.STATUS_MASK) + Timeout.STATUS_MASK + 1;
+        }
+
+        /**
+         * Handle of a scheduled task.
+         */
+        public static final class Timeout {
+
+                private static final int STATUS_MASK = 7;
+                private static final int ST_NEW = 0;
+                private static final int ST_SCHEDULED = 1;
+                private static final int ST_CANCELLED = 2;
+                private static final int ST_EXPIRING = 3;
+                private static final int ST_EXPIRED = 4;
+
+                private final Runnable task;
+
+                private TimingWheel timingWheel;
+
+                // nanos since the wheel started
+                private long deadline;
+
+                // generation in the high bits, status in the low 3 bits
+                volatile int state = ST_NEW;
+
+                // 1 while on the scheduled stack
+                volatile int queued;
+
+                private volatile Timeout nextScheduled;
+
+                // worker-owned bucket links
+                private int scheduledState;
+                private long remainingRounds;
+                private Timeout next;
+                private Timeout prev;
+                private Bucket bucket;
+
+                /**
+                 * @param task runs on the worker thread every time the timeout expires
+                 */
+                public Timeout(Runnable task) {
+                        this.task = task;
+                }
+
+                /**
+                 * If the task is running, waits for it to finish, unless called from the task itself.
+                 *
+                 * @return true if the task will not run, false if it already ran
+                 */
+                public boolean cancel() {
+                        int state = this.state;
+                        if (status(state) != ST_SCHEDULED || !STATE.compareAndSet(this, state, state - ST_SCHEDULED + ST_CANCELLED)) {
+                                if (timingWheel != null && Thread.currentThread() != timingWheel.worker) {
+                                        while (status(this.state) == ST_EXPIRING) {
+                                                Thread.yield();
+                                        }
+                                }
+                                return false;
+                        }
+                        // the worker unlinks it when it next reaches the bucket
+                        timingWheel.pending.decrementAndGet();
+                        return true;
+                }
+
+                public boolean isCancelled() {
+                        return status(state) == ST_CANCELLED;
+                }
+
+                public boolean isExpired() {
+                        int status = status(state);
+                        return status == ST_EXPIRING || status == ST_EXPIRED;
+                }
+
+                private void expire() {
+                        int state = scheduledState;
+                        if (!STATE.compareAndSet(this, state, state - ST_SCHEDULED + ST_EXPIRING)) {
+                                return;
+                        }
+                        timingWheel.pending.decrementAndGet();
+                        try {
+                                task.run();
+                        } catch (Throwable t) {
+                                logger.warn("timeout task {} threw an exception", task, t);
+                        } finally {
+                                this.state = state - ST_SCHEDULED + ST_EXPIRED;
+                        }
+                }
+        }
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private static final AtomicIntegerFieldUpdater<Timeout> QUEUED =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "queued");
+
+        /**
+         * Doubly linked list of timeouts, only touched by the worker.
+         */
+        private static final class Bucket {
+
+                private Timeout head;
+                private Timeout tail;
+
+                void add(Timeout timeout) {
+                        timeout.bucket = this;
+                        if (head == null) {
+                                head = tail = timeout;
+                        } else {
+                                tail.next = timeout;
+                                timeout.prev = tail;
+                                tail = timeout;
+                        }
+                }
+
+                void expire() {
+                        Timeout timeout = head;
+                        while (timeout != null) {
+                                Timeout next = timeout.next;
+                                if (timeout.state != timeout.scheduledState) {
+                                        // cancelled, or scheduled again and waiting to be transferred
+                                        remove(timeout);
+                                } else if (timeout.remainingRounds <= 0) {
+                                        remove(timeout);
+                                        timeout.expire();
+                                } else {
+                                        timeout.remainingRounds--;
+                                }
+                                timeout = next;
+                        }
+                }
+
+                void remove(Timeout timeout) {
+                        Timeout next = timeout.next;
+                        if (timeout.prev != null) {
+                                timeout.prev.next = next;
+                        }
+                        if (next != null) {
+                                next.prev = timeout.prev;
+                        }
+                        if (timeout == head) {
+                                head = next;
+                        }
+                        if (timeout == tail) {
+                                tail = timeout.prev;
+                        }
+                        timeout.prev = null;
+                        timeout.next = null;
+                        timeout.bucket = null;
+                }
+
+                void clear() {
+                        while (head != null) {
+                                remove(head);
+                        }
+                }
+        }
+}
@@ -25,6 +25,7 @@ package com.crossbusiness.resiliency.aspect.spring;
 
 import com.crossbusiness.resiliency.annotation.Fallback;
 import com.crossbusiness.resiliency.aspect.AbstractFallbackAspect;
+import com.crossbusiness.resiliency.aspect.ExceptionClassifier;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
@@ -57,6 +58,8 @@ public class AnnotationFallbackAspect {
     @Autowired
     private ApplicationContext context;
 
+    private final ExceptionClassifier.Cache fallbackableExceptions = new ExceptionClassifier.Cache();
+
     @Around("fallbackAnnotatedClass(fallbackConfig)")
     public Object fallbackOnClassLevel(ProceedingJoinPoint pjp, Fallback fallbackConfig) throws Throwable {
         return rerouteToFallback(pjp, fallbackConfig);
@@ -74,7 +77,6 @@ public class AnnotationFallbackAspect {
     public Object rerouteToFallback(ProceedingJoinPoint pjp, Fallback fallbackConfig) throws Throwable {
 
         String[] fallbacks = fallbackConfig.value();
-        Class<? extends Throwable>[] fallbackableExceptions = fallbackConfig.exceptions();
 
         List<Object> fallbackBeans = new ArrayList<Object>(fallbacks.length);
         for (String fallback : fallbacks) {
@@ -99,7 +101,7 @@ public class AnnotationFallbackAspect {
         }catch (Throwable t) {
 
             // if the exception is not what we're looking for, rethrow it
-            if (!isFallbackableException(t, fallbackableExceptions)) throw t;
+            if (!isFallbackableException(pjp, t, fallbackConfig)) throw t;
 
             log.debug("got exception while trying the targetBean method: '{}'. will try fallbackBean...",targetMethod);
             Iterator<Object> iter = fallbackBeans.iterator();
@@ -135,13 +137,13 @@ public class AnnotationFallbackAspect {
     }
 
 
-    static boolean isFallbackableException(Throwable t,  Class<? extends Throwable>[] fallbackableExceptions) {
-        for (Class<? extends Throwable> throwable : fallbackableExceptions) {
-            if (throwable.isAssignableFrom(t.getClass())) {
-                return true;
-            }
+    private boolean isFallbackableException(ProceedingJoinPoint pjp, Throwable t, Fallback fallbackConfig) {
+        ExceptionClassifier classifier = fallbackableExceptions.get(pjp.getStaticPart(), fallbackConfig);
+        if (classifier == null) {
+            classifier = fallbackableExceptions.put(pjp.getStaticPart(),
+                    new ExceptionClassifier(fallbackConfig, fallbackConfig.exceptions(), fallbackConfig.excludeExceptions()));
         }
-        return false;
+        return classifier.matches(t);
     }
 
     /**
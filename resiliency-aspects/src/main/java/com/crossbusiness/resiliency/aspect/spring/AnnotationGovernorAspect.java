@@ -25,6 +25,7 @@ package com.crossbusiness.resiliency.aspect.spring;
 
 import com.crossbusiness.resiliency.annotation.Governor;
 import com.crossbusiness.resiliency.aspect.AbstractGovernorAspect;
+import com.crossbusiness.resiliency.aspect.RateLimiter;
 import com.crossbusiness.resiliency.exception.ConcurrencyLimitExceededException;
 import com.crossbusiness.resiliency.exception.RateLimitExceededException;
 import org.aspectj.lang.ProceedingJoinPoint;
@@ -37,7 +38,6 @@ import org.springframework.core.annotation.Order;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
-import java.util.TimerTask;
 import java.util.concurrent.*;
 
 /**
@@ -66,8 +66,9 @@ public class AnnotationGovernorAspect {
         @Override
         public Object proceed(ProceedingJoinPoint pjp) throws Throwable {
             if(blocking) {
+                // outside the try, an interrupted acquire must not release a permit it never got
+                semaphore.acquire();
                 try {
-                    semaphore.acquire();
                     return pjp.proceed();
                 }finally {
                     semaphore.release();
@@ -86,44 +87,31 @@ public class AnnotationGovernorAspect {
             }
         }
     }
-    private static class RateThrottleDecorator extends ConcurrencyThrottleDecorator{
-        ScheduledFuture timer;
-
-        public RateThrottleDecorator(final int limit, final long period, final TimeUnit unit, final boolean blocking, ScheduledExecutorService scheduler) {
-            super(limit,blocking);
-            this.timer = scheduler.scheduleAtFixedRate( new TimerTask()
-            {
-                public void run()
-                {
-                    log.debug("Throttler[limit={},period={},unit={},blocking={}] : {} permits available before release",
-                            new Object[] {limit, period, unit, blocking, semaphore.availablePermits()});
-                    synchronized(semaphore) {
-                        semaphore.release(limit - semaphore.availablePermits());
-                    }
-                }
-            } , 0, period, unit);
+    private static class RateThrottleDecorator implements Throttler{
+        RateLimiter rateLimiter;
+        boolean blocking;
+
+        public RateThrottleDecorator(int limit, long period, TimeUnit unit, boolean blocking) {
+            this.rateLimiter = new RateLimiter(limit, period, unit);
+            this.blocking = blocking;
         }
 
         public Object proceed(ProceedingJoinPoint pjp) throws Throwable {
-            if(timer.isCancelled()) {
-                throw new RuntimeException("Invalid timer!");
-            }
             if(blocking) {
-                semaphore.acquire();
+                rateLimiter.acquire();
                 return pjp.proceed();
             } else {
-                if(semaphore.tryAcquire()) {
+                if(rateLimiter.tryAcquire()) {
                     return pjp.proceed();
                 } else {
-                    log.warn("Request rejected: rate limit {} exceeded", limit);
-                    throw new RateLimitExceededException(limit);
+                    log.warn("Request rejected: rate limit {} exceeded", rateLimiter.getLimit());
+                    throw new RateLimitExceededException(rateLimiter.getLimit());
                 }
             }
         }
     }
 
     Map<String, Throttler> throttles = new ConcurrentHashMap<String, Throttler>();
-    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
     @Around("governorAnnotatedClass(governorConfig)")
     public Object governorOnClassLevel(final ProceedingJoinPoint pjp, Governor governorConfig) throws Throwable {
@@ -147,7 +135,7 @@ public class AnnotationGovernorAspect {
                     break;
                 case RATE:
                     throttles.put(throttleKey, new RateThrottleDecorator(governorConfig.limit(), governorConfig.period(),
-                            governorConfig.unit(), governorConfig.blocking(), scheduler));
+                            governorConfig.unit(), governorConfig.blocking()));
                     break;
                 case ALL: //TODO
                     break;
@@ -0,0 +1,347 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect.spring;
+
+import com.crossbusiness.resiliency.annotation.Hedge;
+import com.crossbusiness.resiliency.aspect.CompletionStageHedge;
+import com.crossbusiness.resiliency.aspect.DeadlineContext;
+import com.crossbusiness.resiliency.aspect.LatencyHistogram;
+import com.crossbusiness.resiliency.aspect.RetryBudget;
+import com.crossbusiness.resiliency.aspect.TimingWheel;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.Pointcut;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.annotation.Order;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Aspect that hedges selected methods: if a call has not completed after a delay, a second attempt is
+ * started and the first one to succeed wins, the other one is cancelled.
+ * <p/>
+ * The delay is fixed, or a percentile of the latency the method showed in the last minute. A budget shared by
+ * the calls of the method caps the second attempts at a ratio of the calls.
+ * <p/>
+ * A blocking method runs on an executor while the caller waits, so the second attempt can overtake it. A method
+ * returning a {@link CompletionStage} runs on the caller and is hedged without holding a thread.
+ *
+ * @author Sumanth Chinthagunta <xmlking@gmail.com>
+ *
+ */
+@Component
+@Order(118)
+@ManagedResource
+@Aspect
+public class AnnotationHedgeAspect {
+
+    protected final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final int DEFAULT_POOL_SIZE = 50;
+
+    // calls observed before a delay is derived from the latency of a method
+    private static final int MIN_SAMPLES = 100;
+
+    private static final long LATENCY_WINDOW_SECONDS = 60;
+
+    private final Map<Method, Executor> executors = new ConcurrentHashMap<Method, Executor>(16);
+
+    // StaticPart does not override equals/hashCode, so lookups are by identity.
+    private final ConcurrentMap<JoinPoint.StaticPart, Hedged> hedged = new ConcurrentHashMap<JoinPoint.StaticPart, Hedged>(16);
+
+    @Autowired(required=false)
+    private ApplicationContext context;
+
+    private Executor defaultExecutor;
+
+    private int poolSize = DEFAULT_POOL_SIZE;
+
+    /**
+     * Timer that starts the second attempts of returned CompletionStages, its thread starts with the first one.
+     */
+    private final TimingWheel timer = new TimingWheel(timerThreadFactory(), 1, TimeUnit.MILLISECONDS, 1024);
+
+    /**
+     * Executor used when {@link Hedge#executor()} is not set. Without one, a bounded pool of daemon threads is used.
+     */
+    @Autowired(required=false)
+    @Qualifier("hedgeExecutor")
+    public void setExecutor(Executor defaultExecutor) {
+        this.defaultExecutor = defaultExecutor;
+    }
+
+    /**
+     * Allow overriding of the size of the built-in pool, before the first call.
+     *
+     * @param poolSize maximum number of threads
+     */
+    @ManagedAttribute(description = "Maximum number of threads of the built-in pool", defaultValue = "50")
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    @Around("hedgeAnnotatedClass(hedgeConfig)")
+    public Object hedgeOnClassLevel(final ProceedingJoinPoint point, Hedge hedgeConfig) throws Throwable {
+        return doHedge(point, hedgeConfig);
+    }
+
+    @Around("hedgeAnnotatedMethod(hedgeConfig)")
+    public Object hedgeOnMethodLevel(final ProceedingJoinPoint point, Hedge hedgeConfig) throws Throwable {
+        return doHedge(point, hedgeConfig);
+    }
+
+    // @Around("hedgeMethodExecution(hedgeConfig)")
+    public Object doHedge(final ProceedingJoinPoint point, Hedge hedgeConfig) throws Throwable {
+        Method method = ((MethodSignature) point.getSignature()).getMethod();
+        Hedged stats = hedgedOf(point, hedgeConfig);
+        long delayNanos = stats.delayNanos(hedgeConfig);
+        // a second attempt that the deadline of the caller cuts short is no use
+        if (delayNanos >= 0 && DeadlineContext.current().remaining(TimeUnit.NANOSECONDS) <= delayNanos) {
+            delayNanos = -1;
+        }
+
+        long start = System.nanoTime();
+        if (CompletionStage.class.isAssignableFrom(method.getReturnType())
+                && method.getReturnType().isAssignableFrom(CompletableFuture.class)) {
+            Object output = point.proceed();
+            if (delayNanos < 0 || !(output instanceof CompletionStage)) {
+                return stats.observe(output, start);
+            }
+            return CompletionStageHedge.hedge(point, (CompletionStage<?>) output, start, delayNanos, stats.budget,
+                    stats.latency, getExecutor(method, hedgeConfig.executor()), timer);
+        }
+        if (delayNanos < 0) {
+            // not enough calls observed yet
+            return stats.observe(point.proceed(), start);
+        }
+
+        final long deadline = DeadlineContext.current().getDeadline();
+        Callable<Object> attempt = new Callable<Object>() {
+            public Object call() throws Exception {
+                DeadlineContext taskContext = DeadlineContext.current();
+                long previousDeadline = taskContext.set(deadline);
+                try {
+                    return point.proceed();
+                } catch (Throwable ex) {
+                    ReflectionUtils.rethrowException(ex);
+                    return null;
+                } finally {
+                    taskContext.set(previousDeadline);
+                }
+            }
+        };
+        CompletionService<Object> attempts = new ExecutorCompletionService<Object>(getExecutor(method, hedgeConfig.executor()));
+        Future<Object> first;
+        try {
+            first = attempts.submit(attempt);
+        } catch (RejectedExecutionException ex) {
+            log.debug("{} not hedged, executor is saturated", method);
+            return stats.observe(point.proceed(), start);
+        }
+        Future<Object> second = null;
+        try {
+            Future<Object> done = attempts.poll(delayNanos, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                if (stats.budget.tryRetry()) {
+                    log.debug("{} not complete after hedging delay, starting a second attempt", method);
+                    try {
+                        second = attempts.submit(attempt);
+                    } catch (RejectedExecutionException ex) {
+                        log.debug("{} not hedged, executor is saturated", method);
+                    }
+                }
+                done = attempts.take();
+            }
+            try {
+                return stats.observe(done.get(), start);
+            } catch (ExecutionException ex) {
+                if (second == null) {
+                    throw ex.getCause();
+                }
+            }
+            // one attempt failed, the other one may still succeed
+            try {
+                return stats.observe(attempts.take().get(), start);
+            } catch (ExecutionException ex) {
+                throw ex.getCause();
+            }
+        } finally {
+            first.cancel(true);
+            if (second != null) {
+                second.cancel(true);
+            }
+        }
+    }
+
+    private Hedged hedgedOf(JoinPoint point, Hedge hedgeConfig) {
+        Hedged stats = hedged.get(point.getStaticPart());
+        if (stats == null) {
+            Hedged created = new Hedged(point.getSignature().toLongString(), hedgeConfig);
+            stats = hedged.putIfAbsent(point.getStaticPart(), created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    protected Executor getExecutor(Method method, String qualifier) {
+        Executor executor = this.executors.get(method);
+        if (executor == null) {
+            executor = this.defaultExecutor;
+            if (qualifier != null && !qualifier.isEmpty() && context != null) {
+                try {
+                    executor = context.getBean(qualifier, Executor.class);
+                } catch(NoSuchBeanDefinitionException ex){
+                    log.error("Executor with qualifier: "+qualifier+" Not defined in spring context");
+                }
+            }
+            if (executor == null) {
+                executor = defaultPool();
+            }
+            this.executors.put(method, executor);
+        }
+        return executor;
+    }
+
+    private ThreadFactory timerThreadFactory() {
+        CustomizableThreadFactory tf = new CustomizableThreadFactory("sumo-hedge-timer-");
+        tf.setDaemon(true);
+        tf.setThreadGroupName("resiliency");
+        return tf;
+    }
+
+    private synchronized Executor defaultPool() {
+        if (this.defaultExecutor == null) {
+            CustomizableThreadFactory tf = new CustomizableThreadFactory("sumo-hedge-");
+            tf.setDaemon(true);
+            tf.setThreadGroupName("resiliency");
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), tf);
+            pool.allowCoreThreadTimeOut(true);
+            this.defaultExecutor = pool;
+        }
+        return this.defaultExecutor;
+    }
+
+    /**
+     * Latency and hedging budget of a method.
+     */
+    private static final class Hedged {
+
+        final LatencyHistogram latency = new LatencyHistogram(LATENCY_WINDOW_SECONDS, TimeUnit.SECONDS);
+
+        // null if hedging is disabled
+        final RetryBudget budget;
+
+        Hedged(String name, Hedge hedgeConfig) {
+            this.budget = hedgeConfig.budgetRatio() > 0
+                    ? new RetryBudget(name, hedgeConfig.budgetRatio(), hedgeConfig.budgetMinHedgesPerSecond()) : null;
+        }
+
+        /**
+         * @return delay before the second attempt, -1 to not hedge
+         */
+        long delayNanos(Hedge hedgeConfig) {
+            if (budget == null) {
+                return -1;
+            }
+            if (hedgeConfig.delay() > 0) {
+                return hedgeConfig.unit().toNanos(hedgeConfig.delay());
+            }
+            return latency.estimate(hedgeConfig.percentile(), MIN_SAMPLES);
+        }
+
+        Object observe(Object output, final long start) {
+            if (output instanceof CompletionStage) {
+                ((CompletionStage<?>) output).whenComplete(new BiConsumer<Object, Throwable>() {
+                    @Override
+                    public void accept(Object value, Throwable throwable) {
+                        if (throwable == null) {
+                            succeeded(start);
+                        }
+                    }
+                });
+            } else {
+                succeeded(start);
+            }
+            return output;
+        }
+
+        private void succeeded(long start) {
+            latency.record(System.nanoTime() - start);
+            if (budget != null) {
+                budget.onSuccess();
+            }
+        }
+    }
+
+    /**
+     * Matches the execution of any method with the @{@link com.crossbusiness.resiliency.annotation.Hedge} annotation.
+     */
+    @Pointcut("execution(@com.crossbusiness.resiliency.annotation.Hedge * *(..)) && @annotation(hedgeConfig)")
+    public void hedgeAnnotatedMethod(Hedge hedgeConfig) {}
+
+    /**
+     * Matches the execution of any public method in a type with the @{@link com.crossbusiness.resiliency.annotation.Hedge}
+     * annotation, or any subtype of a type with the {@code Hedge} annotation.
+     */
+    @Pointcut("execution(public * ((@com.crossbusiness.resiliency.annotation.Hedge *)+).*(..)) " +
+            "&& within(@com.crossbusiness.resiliency.annotation.Hedge *) && @target(hedgeConfig) " +
+            "&& !com.crossbusiness.resiliency.aspect.SystemArchitecture.groovyMOPMethods()")
+    public void hedgeAnnotatedClass(Hedge hedgeConfig) {}
+
+    @Pointcut("(hedgeAnnotatedMethod(hedgeConfig) || hedgeAnnotatedClass(hedgeConfig))")
+    public void hedgeMethodExecution(Hedge hedgeConfig) { }
+}
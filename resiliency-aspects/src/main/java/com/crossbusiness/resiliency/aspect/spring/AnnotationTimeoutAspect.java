@@ -24,6 +24,9 @@
 package com.crossbusiness.resiliency.aspect.spring;
 
 import com.crossbusiness.resiliency.annotation.Timeout;
+import com.crossbusiness.resiliency.aspect.CompletionStageTimeout;
+import com.crossbusiness.resiliency.aspect.DeadlineContext;
+import com.crossbusiness.resiliency.aspect.TimingWheel;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
@@ -37,8 +40,10 @@ import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Component;
 
 import java.lang.reflect.Method;
-import java.util.Set;
-import java.util.concurrent.*;
+import java.util.Arrays;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Sumanth Chinthagunta <xmlking@gmail.com> on 3/12/14.
@@ -50,18 +55,10 @@ public class AnnotationTimeoutAspect {
     static final Logger log = LoggerFactory.getLogger(AnnotationTimeoutAspect.class);
 
     /**
-     * Calls being watched.
+     * Timer that interrupts threads.
      */
-    private final transient Set<AnnotationTimeoutAspect.Call> calls =
-            new ConcurrentSkipListSet<AnnotationTimeoutAspect.Call>();
-
-    /**
-     * Service that interrupts threads.
-     */
-    private final transient ScheduledExecutorService interrupter =
-            Executors.newSingleThreadScheduledExecutor(
-                    threadFactory()
-            );
+    private final transient TimingWheel interrupter =
+            new TimingWheel(threadFactory(), 1, TimeUnit.MILLISECONDS, 1024); //Time resolution is one millisecond
 
     private ThreadFactory threadFactory() {
         CustomizableThreadFactory tf =  new CustomizableThreadFactory("sumo-timeout-");
@@ -72,19 +69,15 @@ public class AnnotationTimeoutAspect {
     }
 
     /**
-     * Public ctor.
+     * Calls being watched, per thread.
      */
-    public AnnotationTimeoutAspect() {
-        this.interrupter.scheduleWithFixedDelay(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        AnnotationTimeoutAspect.this.interrupt();
-                    }
-                },
-                1, 1, TimeUnit.SECONDS //Time resolution is one second
-        );
-    }
+    private final transient ThreadLocal<AnnotationTimeoutAspect.Calls> calls =
+        new ThreadLocal<AnnotationTimeoutAspect.Calls>() {
+            @Override
+            protected AnnotationTimeoutAspect.Calls initialValue() {
+                return new AnnotationTimeoutAspect.Calls();
+            }
+        };
 
     @Around("timeoutAnnotatedMethod(timeoutConfig)")
     public Object timeoutOnMethodLevel(final ProceedingJoinPoint point,Timeout timeoutConfig) throws Throwable {
@@ -98,88 +91,116 @@ public class AnnotationTimeoutAspect {
 
     // @Around("timeoutMethodExecution(timeoutConfig)")
     public Object doTimeout(final ProceedingJoinPoint point,Timeout timeoutConfig) throws Throwable {
-        log.debug(point + " -> " + timeoutConfig);
-        final AnnotationTimeoutAspect.Call call = new AnnotationTimeoutAspect.Call(point, timeoutConfig);
-        this.calls.add(call);
-        Object output;
+        log.debug("{} -> {}", point, timeoutConfig);
+        final DeadlineContext deadlineContext = DeadlineContext.current();
+        final long timeoutMs = Math.min(timeoutConfig.unit().toMillis(timeoutConfig.value()),
+                deadlineContext.remaining(TimeUnit.MILLISECONDS));
+        if (timeoutMs <= 0) {
+            throw new InterruptedException("Method " + point.getSignature() + " called after the deadline of its caller");
+        }
+        final long deadline = deadlineContext.deadlineAfter(timeoutMs, TimeUnit.MILLISECONDS);
+        final long previousDeadline = deadlineContext.set(deadline);
+        final AnnotationTimeoutAspect.Calls slots = this.calls.get();
+        final AnnotationTimeoutAspect.Call call = slots.enter(point, timeoutMs);
+        final Object output;
         try {
             output = point.proceed();
         } finally {
-            this.calls.remove(call);
+            slots.exit(call);
+            deadlineContext.set(previousDeadline);
+        }
+        if (output instanceof CompletionStage) {
+            // the rest of the work is asynchronous, bound it without holding a thread
+            final MethodSignature signature = MethodSignature.class.cast(point.getSignature());
+            return CompletionStageTimeout.withTimeout(this.interrupter, (CompletionStage<?>) output,
+                    signature.getReturnType(), signature.getMethod().toString(), deadline, timeoutMs);
         }
         return output;
     }
 
     /**
-     * Interrupt threads when needed.
+     * Calls being watched on one thread, one slot per nesting level.
      */
-    private void interrupt() {
-        synchronized (this.interrupter) {
-            for (AnnotationTimeoutAspect.Call call : this.calls) {
-                if (call.expired() && call.interrupted()) {
-                    this.calls.remove(call);
-                }
+    private final class Calls {
+        /**
+         * Preallocated slots, grown when calls nest deeper.
+         */
+        private AnnotationTimeoutAspect.Call[] slots = new AnnotationTimeoutAspect.Call[4];
+        /**
+         * Number of slots in use.
+         */
+        private int depth;
+        /**
+         * Watch a call in the next free slot.
+         * @param point Joint point
+         * @param timeoutMs Timeout in milliseconds
+         * @return The slot
+         */
+        public AnnotationTimeoutAspect.Call enter(final ProceedingJoinPoint point, long timeoutMs) {
+            if (this.depth == this.slots.length) {
+                this.slots = Arrays.copyOf(this.slots, this.depth * 2);
+            }
+            AnnotationTimeoutAspect.Call call = this.slots[this.depth];
+            if (call == null) {
+                call = new AnnotationTimeoutAspect.Call();
+                this.slots[this.depth] = call;
             }
+            this.depth++;
+            call.start(point, timeoutMs);
+            AnnotationTimeoutAspect.this.interrupter.schedule(call.timeout, call.deadline - call.start, TimeUnit.MILLISECONDS);
+            return call;
+        }
+        /**
+         * Stop watching the innermost call and free its slot.
+         * @param call The slot
+         */
+        public void exit(final AnnotationTimeoutAspect.Call call) {
+            // once cancel() returns the timeout task is done or will never run, so nothing reads the point anymore
+            call.timeout.cancel();
+            call.point = null;
+            this.depth--;
         }
     }
 
     /**
-     * A call being watched.
+     * A call being watched, reused by the calls of one thread at the same nesting level.
      */
-    private static final class Call implements
-            Comparable<AnnotationTimeoutAspect.Call> {
+    private static final class Call implements Runnable {
         /**
          * The thread called.
          */
         private final transient Thread thread = Thread.currentThread();
+        /**
+         * Timer of the current call.
+         */
+        private final transient TimingWheel.Timeout timeout = new TimingWheel.Timeout(this);
         /**
          * When started.
          */
-        private final transient long start = System.currentTimeMillis();
+        private transient long start;
         /**
          * When will expire.
          */
-        private final transient long deadline;
+        private transient long deadline;
         /**
          * Join point.
          */
-        private final transient ProceedingJoinPoint point;
+        private transient ProceedingJoinPoint point;
         /**
-         * Public ctor.
+         * Watch the next call.
          * @param pnt Joint point
+         * @param timeoutMs Timeout in milliseconds
          */
-        public Call(final ProceedingJoinPoint pnt, Timeout timeoutConfig) {
+        public void start(final ProceedingJoinPoint pnt, long timeoutMs) {
             this.point = pnt;
-            this.deadline = this.start + timeoutConfig.unit().toMillis(timeoutConfig.value());
+            this.start = System.currentTimeMillis();
+            this.deadline = this.start + timeoutMs;
         }
         /**
-         * {@inheritDoc}
+         * Interrupt the thread, unless it is dead already.
          */
         @Override
-        public int compareTo(final Call obj) {
-            int compare;
-            if (this.deadline > obj.deadline) {
-                compare = 1;
-            } else if (this.deadline < obj.deadline) {
-                compare = -1;
-            } else {
-                compare = 0;
-            }
-            return compare;
-        }
-        /**
-         * Is it expired already?
-         * @return TRUE if expired
-         */
-        public boolean expired() {
-            return this.deadline < System.currentTimeMillis();
-        }
-        /**
-         * This thread is stopped already (interrupt if not)?
-         * @return TRUE if it's already dead
-         */
-        public boolean interrupted() {
-            boolean dead;
+        public void run() {
             if (this.thread.isAlive()) {
                 this.thread.interrupt();
                 final Method method = MethodSignature.class
@@ -191,17 +212,10 @@ public class AnnotationTimeoutAspect {
                                 System.currentTimeMillis() - this.start,
                                 this.deadline - this.start}
                 );
-                dead = false;
-            } else {
-                dead = true;
             }
-            return dead;
         }
     }
 
-    /**
-     * Matches the execution of any method with the @{@link com.crossbusiness.resiliency.annotation.Timeout} annotation.
-     */
     @Pointcut("execution(@com.crossbusiness.resiliency.annotation.Timeout * *(..)) && @annotation(timeoutConfig)")
     public void timeoutAnnotatedMethod(Timeout timeoutConfig) {}
 
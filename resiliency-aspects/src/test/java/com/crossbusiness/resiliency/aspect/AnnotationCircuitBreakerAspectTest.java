@@ -33,7 +33,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,7 +44,13 @@ import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Component;
 
 import java.io.FileNotFoundException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import static com.googlecode.catchexception.CatchException.*;
@@ -199,6 +207,26 @@ public class AnnotationCircuitBreakerAspectTest extends TestCase {
         verify(delegateMock, timeout(500).times(4)).mockedMethod("testArg");
     }
 
+    @Test
+    public void method_annotated_with_circuitBreaker_that_excludes_IllegalArgumentException_should_pass() {
+
+        log.debug("Starting Test : method_annotated_with_circuitBreaker_that_excludes_IllegalArgumentException_should_pass");
+
+        when(delegateMock.mockedMethod(anyString()))
+                .thenThrow(new IllegalArgumentException("first fake IllegalArgumentException"))
+                .thenThrow(new IllegalArgumentException("second fake IllegalArgumentException"))
+                .thenReturn("testArg back");
+
+        catchException(testService).failure2_excludeIllegalArgumentException("testArg"); //First Time
+        assertThat(caughtException(), is(instanceOf(IllegalArgumentException.class)));
+
+        catchException(testService).failure2_excludeIllegalArgumentException("testArg"); //Second Time
+        assertThat(caughtException(), is(instanceOf(IllegalArgumentException.class)));
+
+        assertEquals("testArg back", testService.failure2_excludeIllegalArgumentException("testArg")); //Third Time
+        verify(delegateMock, times(3)).mockedMethod("testArg");
+    }
+
     @Test
     public void method_annotated_with_circuitBreaker_that_fails_2times_within_2000ms_but_tried_after_3000ms_should_pass() {
 
@@ -254,6 +282,303 @@ public class AnnotationCircuitBreakerAspectTest extends TestCase {
         verify(delegateMock, timeout(4000).times(4)).mockedMethod("testArg");
     }
 
+    @Test
+    public void method_annotated_with_circuitBreaker_in_failure_rate_mode_opens_when_50_percent_of_4_calls_fail() {
+
+        log.debug("Starting Test : method_annotated_with_circuitBreaker_in_failure_rate_mode_opens_when_50_percent_of_4_calls_fail");
+
+        when(delegateMock.mockedMethod(anyString()))
+                .thenReturn("testArg back")
+                .thenReturn("testArg back")
+                .thenThrow(new RuntimeException("first fake RuntimeException"))
+                .thenThrow(new RuntimeException("second fake RuntimeException"));
+
+        testService.failureRate50_minimumCalls4("testArg"); //First Time
+        testService.failureRate50_minimumCalls4("testArg"); //Second Time
+
+        catchException(testService).failureRate50_minimumCalls4("testArg"); //Third Time: 1 of 3 calls failed, below minimumNumberOfCalls
+        assertThat(caughtException(),
+            allOf(
+                is(instanceOf(RuntimeException.class)),
+                hasMessage("first fake RuntimeException"),
+                hasNoCause()
+            )
+        );
+
+        catchException(testService).failureRate50_minimumCalls4("testArg"); //Forth Time: 2 of 4 calls failed
+        assertThat(caughtException(),
+            allOf(
+                is(instanceOf(RuntimeException.class)),
+                hasMessage("second fake RuntimeException"),
+                hasNoCause()
+            )
+        );
+
+        catchException(testService).failureRate50_minimumCalls4("testArg"); //Fifth Time
+        assertThat(caughtException(),
+            allOf(
+                is(instanceOf(OpenCircuitException.class)),
+                hasMessage("open circuit"),
+                hasNoCause()
+            )
+        );
+
+        verify(delegateMock, times(4)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void method_annotated_with_circuitBreaker_in_slow_call_mode_opens_when_calls_take_longer_than_100ms() {
+
+        log.debug("Starting Test : method_annotated_with_circuitBreaker_in_slow_call_mode_opens_when_calls_take_longer_than_100ms");
+
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) {
+                awite(150);
+                return "testArg back";
+            }
+        }).when(delegateMock).mockedMethod(anyString());
+
+        testService.slowCall100ms_minimumCalls2("testArg"); //First Time
+        testService.slowCall100ms_minimumCalls2("testArg"); //Second Time: 2 of 2 calls were slow
+
+        catchException(testService).slowCall100ms_minimumCalls2("testArg"); //Third Time
+        assertThat(caughtException(),
+            allOf(
+                is(instanceOf(OpenCircuitException.class)),
+                hasMessage("open circuit"),
+                hasNoCause()
+            )
+        );
+
+        verify(delegateMock, times(2)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void method_annotated_with_circuitBreaker_with_2_half_open_trial_calls_opens_again_when_second_trial_fails() {
+
+        log.debug("Starting Test : method_annotated_with_circuitBreaker_with_2_half_open_trial_calls_opens_again_when_second_trial_fails");
+
+        when(delegateMock.mockedMethod(anyString()))
+                .thenThrow(new RuntimeException("first fake RuntimeException"))
+                .thenThrow(new RuntimeException("second fake RuntimeException"))
+                .thenReturn("testArg back")
+                .thenThrow(new RuntimeException("third fake RuntimeException"));
+
+        catchException(testService).twoHalfOpenTrials_retryAfter500l("testArg"); //First Time
+        catchException(testService).twoHalfOpenTrials_retryAfter500l("testArg"); //Second Time: circuit opens
+        catchException(testService).twoHalfOpenTrials_retryAfter500l("testArg"); //Third Time
+        assertThat(caughtException(), is(instanceOf(OpenCircuitException.class)));
+
+        awite(600);
+
+        testService.twoHalfOpenTrials_retryAfter500l("testArg"); //Forth Time: first trial call succeeds, circuit stays HALF_OPEN
+
+        catchException(testService).twoHalfOpenTrials_retryAfter500l("testArg"); //Fifth Time: second trial call fails
+        assertThat(caughtException(),
+            allOf(
+                is(instanceOf(RuntimeException.class)),
+                hasMessage("third fake RuntimeException"),
+                hasNoCause()
+            )
+        );
+
+        catchException(testService).twoHalfOpenTrials_retryAfter500l("testArg"); //Sixth Time
+        assertThat(caughtException(),
+            allOf(
+                is(instanceOf(OpenCircuitException.class)),
+                hasMessage("open circuit"),
+                hasNoCause()
+            )
+        );
+
+        verify(delegateMock, times(4)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void method_annotated_with_circuitBreaker_with_half_open_success_rate_threshold_0_opens_again_when_trial_fails() {
+
+        log.debug("Starting Test : method_annotated_with_circuitBreaker_with_half_open_success_rate_threshold_0_opens_again_when_trial_fails");
+
+        when(delegateMock.mockedMethod(anyString()))
+                .thenThrow(new RuntimeException("first fake RuntimeException"))
+                .thenThrow(new RuntimeException("second fake RuntimeException"))
+                .thenThrow(new RuntimeException("third fake RuntimeException"))
+                .thenReturn("testArg back");
+
+        catchException(testService).successRate0_retryAfter300l("testArg"); //First Time
+        catchException(testService).successRate0_retryAfter300l("testArg"); //Second Time: circuit opens
+
+        awite(400);
+
+        catchException(testService).successRate0_retryAfter300l("testArg"); //Third Time: trial call fails
+        assertThat(caughtException(), hasMessage("third fake RuntimeException"));
+
+        catchException(testService).successRate0_retryAfter300l("testArg"); //Forth Time: threshold 0 is taken as 1 percent, circuit opened again
+        assertThat(caughtException(),
+            allOf(
+                is(instanceOf(OpenCircuitException.class)),
+                hasMessage("open circuit"),
+                hasNoCause()
+            )
+        );
+
+        verify(delegateMock, times(3)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void methods_annotated_with_circuitBreaker_do_not_block_each_other() throws Exception {
+
+        log.debug("Starting Test : methods_annotated_with_circuitBreaker_do_not_block_each_other");
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws InterruptedException {
+                started.countDown();
+                release.await();
+                return "slowArg back";
+            }
+        }).when(delegateMock).mockedMethod("slowArg");
+        when(delegateMock.mockedMethod("failArg")).thenThrow(new RuntimeException("fake RuntimeException"));
+
+        FutureTask<String> slowCall = new FutureTask<String>(new Callable<String>() {
+            public String call() {
+                return testService.independentSlow_failure2("slowArg");
+            }
+        });
+        new Thread(slowCall).start();
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        // the other breaker trips while the first one is in a call
+        long begin = System.nanoTime();
+        catchException(testService).independentFailing_failure2("failArg"); //First Time
+        catchException(testService).independentFailing_failure2("failArg"); //Second Time: circuit opens
+        catchException(testService).independentFailing_failure2("failArg"); //Third Time
+        assertThat(caughtException(), is(instanceOf(OpenCircuitException.class)));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 500);
+
+        release.countDown();
+        assertEquals("slowArg back", slowCall.get(1, TimeUnit.SECONDS));
+        assertEquals("slowArg back", testService.independentSlow_failure2("slowArg"));
+        verify(delegateMock, times(2)).mockedMethod("failArg");
+    }
+
+    @Test
+    public void method_annotated_with_circuitBreaker_ignores_failure_of_a_call_started_before_the_circuit_opened_and_closed_again() throws Exception {
+
+        log.debug("Starting Test : method_annotated_with_circuitBreaker_ignores_failure_of_a_call_started_before_the_circuit_opened_and_closed_again");
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation) throws InterruptedException {
+                started.countDown();
+                release.await();
+                throw new RuntimeException("stale fake RuntimeException");
+            }
+        }).when(delegateMock).mockedMethod("slowArg");
+        when(delegateMock.mockedMethod("testArg"))
+                .thenThrow(new RuntimeException("first fake RuntimeException"))
+                .thenThrow(new RuntimeException("second fake RuntimeException"))
+                .thenReturn("testArg back")
+                .thenThrow(new RuntimeException("third fake RuntimeException"))
+                .thenReturn("testArg back");
+
+        FutureTask<String> staleCall = new FutureTask<String>(new Callable<String>() {
+            public String call() {
+                return testService.staleFailure_retryAfter300l("slowArg");
+            }
+        });
+        new Thread(staleCall).start(); // starts in the first CLOSED cycle
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        catchException(testService).staleFailure_retryAfter300l("testArg"); //First Time
+        catchException(testService).staleFailure_retryAfter300l("testArg"); //Second Time: circuit opens
+        awite(400);
+        assertEquals("testArg back", testService.staleFailure_retryAfter300l("testArg")); //Third Time: trial call succeeds, new CLOSED cycle
+
+        release.countDown();
+        try {
+            staleCall.get(1, TimeUnit.SECONDS);
+            fail("expected RuntimeException");
+        } catch (ExecutionException e) {
+            assertEquals("stale fake RuntimeException", e.getCause().getMessage());
+        }
+
+        catchException(testService).staleFailure_retryAfter300l("testArg"); //Forth Time: first failure of this cycle
+        assertThat(caughtException(), hasMessage("third fake RuntimeException"));
+
+        assertEquals("testArg back", testService.staleFailure_retryAfter300l("testArg")); //Fifth Time: still closed
+        verify(delegateMock, times(5)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void method_annotated_with_circuitBreaker_with_backoff_waits_twice_as_long_after_a_failed_trial_call() {
+
+        log.debug("Starting Test : method_annotated_with_circuitBreaker_with_backoff_waits_twice_as_long_after_a_failed_trial_call");
+
+        when(delegateMock.mockedMethod(anyString()))
+                .thenThrow(new RuntimeException("first fake RuntimeException"))
+                .thenThrow(new RuntimeException("second fake RuntimeException"))
+                .thenThrow(new RuntimeException("third fake RuntimeException"))
+                .thenReturn("testArg back");
+
+        catchException(testService).backoff_retryAfter300l_multiplier2("testArg"); //First Time
+        catchException(testService).backoff_retryAfter300l_multiplier2("testArg"); //Second Time: circuit opens for 300ms
+
+        awite(400);
+
+        catchException(testService).backoff_retryAfter300l_multiplier2("testArg"); //Third Time: trial call fails, circuit opens for 600ms
+        assertThat(caughtException(), hasMessage("third fake RuntimeException"));
+
+        awite(400);
+
+        catchException(testService).backoff_retryAfter300l_multiplier2("testArg"); //Forth Time: still open
+        assertThat(caughtException(), is(instanceOf(OpenCircuitException.class)));
+
+        awite(300);
+
+        assertEquals("testArg back", testService.backoff_retryAfter300l_multiplier2("testArg")); //Fifth Time: trial call succeeds
+
+        verify(delegateMock, times(4)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void method_annotated_with_circuitBreaker_publishes_call_outcomes_and_state_transitions() throws InterruptedException {
+
+        log.debug("Starting Test : method_annotated_with_circuitBreaker_publishes_call_outcomes_and_state_transitions");
+
+        final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        CircuitBreakerEventConsumer consumer = new CircuitBreakerEventConsumer() {
+            @Override
+            public void onEvent(CircuitBreakerEvent event) {
+                if (event.getName().contains("events_failureThreshold2")) {
+                    events.add(event.getType() + (event.getToStatus() != null ? " " + event.getFromStatus() + "->" + event.getToStatus() : ""));
+                }
+            }
+        };
+        AbstractCircuitBreakerAspect.addEventConsumer(consumer);
+        try {
+            when(delegateMock.mockedMethod(anyString()))
+                    .thenReturn("testArg back")
+                    .thenThrow(new RuntimeException("first fake RuntimeException"))
+                    .thenThrow(new RuntimeException("second fake RuntimeException"));
+
+            testService.events_failureThreshold2("testArg");
+            catchException(testService).events_failureThreshold2("testArg");
+            catchException(testService).events_failureThreshold2("testArg"); // circuit opens
+            catchException(testService).events_failureThreshold2("testArg");
+
+            assertEquals("SUCCESS", events.poll(1, TimeUnit.SECONDS));
+            assertEquals("FAILURE", events.poll(1, TimeUnit.SECONDS));
+            assertEquals("FAILURE", events.poll(1, TimeUnit.SECONDS));
+            assertEquals("STATE_TRANSITION CLOSED->OPEN", events.poll(1, TimeUnit.SECONDS));
+            assertEquals("NOT_PERMITTED", events.poll(1, TimeUnit.SECONDS));
+        } finally {
+            AbstractCircuitBreakerAspect.removeEventConsumer(consumer);
+        }
+    }
+
     @Test(expected = OpenCircuitException.class)
     public void class_annotated_with_circuitBreaker_that_fails_2times_within_60000ms_will_throw_OpenCircuitException() {
 
@@ -303,11 +628,61 @@ public class AnnotationCircuitBreakerAspectTest extends TestCase {
             return delegate.mockedMethod(arg);
         }
 
+        @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=60000l,retryAfterMs=60000l,excludeExceptions={IllegalArgumentException.class})
+        public String failure2_excludeIllegalArgumentException(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
         @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=2000l,retryAfterMs=3000l)
         public String failure2_threshold2000l_retryAfter3000l(String arg) throws OpenCircuitException {
             return delegate.mockedMethod(arg);
         }
 
+        @CircuitBreaker(failureRateThreshold=50,minimumNumberOfCalls=4,failureThresholdTimeFrameMs=60000l)
+        public String failureRate50_minimumCalls4(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
+        @CircuitBreaker(slowCallDurationThresholdMs=100l,slowCallRateThreshold=50,minimumNumberOfCalls=2,failureThresholdTimeFrameMs=60000l)
+        public String slowCall100ms_minimumCalls2(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
+        @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=60000l,retryAfterMs=500l,permittedNumberOfCallsInHalfOpenState=2)
+        public String twoHalfOpenTrials_retryAfter500l(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
+        @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=60000l,retryAfterMs=60000l)
+        public String independentSlow_failure2(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
+        @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=60000l,retryAfterMs=60000l)
+        public String independentFailing_failure2(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
+        @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=60000l,retryAfterMs=300l)
+        public String staleFailure_retryAfter300l(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
+        @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=60000l,retryAfterMs=300l,halfOpenSuccessRateThreshold=0)
+        public String successRate0_retryAfter300l(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
+        @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=60000l,retryAfterMs=300l,retryAfterMultiplier=2)
+        public String backoff_retryAfter300l_multiplier2(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
+        @CircuitBreaker(failureThreshold=2,failureThresholdTimeFrameMs=60000l,retryAfterMs=60000l)
+        public String events_failureThreshold2(String arg) throws OpenCircuitException {
+            return delegate.mockedMethod(arg);
+        }
+
         /**
          * Note:  Precedence Order enforced. CircuitBreaker(outer), Fallback(inner){@link SystemArchitecture}.
          */
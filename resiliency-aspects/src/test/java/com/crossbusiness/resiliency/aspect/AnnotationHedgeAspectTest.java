@@ -0,0 +1,125 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import com.crossbusiness.resiliency.annotation.Hedge;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link AnnotationHedgeAspect}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AnnotationHedgeAspectTest extends TestCase {
+
+    @Mock
+    Delegate delegateMock;
+
+    @InjectMocks
+    TestService testService;
+
+    @Test
+    public void slow_call_is_overtaken_by_the_second_attempt_and_interrupted() throws Exception {
+        final CountDownLatch neverReleased = new CountDownLatch(1);
+        final CountDownLatch loserInterrupted = new CountDownLatch(1);
+        when(delegateMock.mockedMethod(anyString()))
+            .thenAnswer(new Answer<String>() {
+                @Override
+                public String answer(InvocationOnMock invocation) throws Throwable {
+                    try {
+                        neverReleased.await();
+                    } catch (InterruptedException e) {
+                        loserInterrupted.countDown();
+                        throw e;
+                    }
+                    return "slow replica";
+                }
+            })
+            .thenReturn("fast replica");
+
+        assertEquals("fast replica", testService.hedge_after_50ms("testArg"));
+        verify(delegateMock, times(2)).mockedMethod("testArg");
+        assertTrue(loserInterrupted.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fast_call_is_not_hedged() throws Exception {
+        when(delegateMock.mockedMethod(anyString())).thenReturn("testArg back");
+
+        assertEquals("testArg back", testService.hedge_after_50ms("testArg"));
+        Thread.sleep(100);
+        verify(delegateMock, times(1)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void completable_future_that_does_not_complete_is_overtaken_and_left_to_its_other_holders() throws Exception {
+        CompletableFuture<String> slow = new CompletableFuture<String>();
+        when(delegateMock.mockedAsyncMethod(anyString()))
+            .thenReturn(slow)
+            .thenReturn(CompletableFuture.completedFuture("fast replica"));
+
+        assertEquals("fast replica", testService.async_hedge_after_50ms("testArg").get(1, TimeUnit.SECONDS));
+        assertFalse(slow.isDone()); // may be shared, so it is not cancelled
+        verify(delegateMock, times(2)).mockedAsyncMethod("testArg");
+    }
+
+    @Component
+    private static class TestService {
+
+        @Autowired
+        private Delegate delegate;
+
+        @Hedge(delay = 50)
+        public String hedge_after_50ms(String arg) {
+            return delegate.mockedMethod(arg);
+        }
+
+        @Hedge(delay = 50)
+        public CompletableFuture<String> async_hedge_after_50ms(String arg) {
+            return delegate.mockedAsyncMethod(arg);
+        }
+    }
+
+    private static interface Delegate {
+        String mockedMethod(String arg);
+        CompletableFuture<String> mockedAsyncMethod(String arg);
+    }
+}
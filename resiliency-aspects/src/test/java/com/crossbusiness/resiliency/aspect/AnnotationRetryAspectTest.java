@@ -0,0 +1,220 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import com.crossbusiness.resiliency.annotation.Retry;
+import junit.framework.TestCase;
+
+import org.aspectj.lang.Aspects;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link AnnotationRetryAspect}.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AnnotationRetryAspectTest extends TestCase {
+    static final Logger log = LoggerFactory.getLogger(AnnotationRetryAspectTest.class);
+
+    @Mock
+    Delegate delegateMock;
+
+    @InjectMocks
+    TestService testService;
+
+    @Test
+    public void method_annotated_with_retry_that_fails_2times_succeeds_on_third_attempt() {
+        when(delegateMock.mockedMethod(anyString()))
+            .thenThrow(new IllegalStateException("first fake IllegalStateException"))
+            .thenThrow(new IllegalStateException("second fake IllegalStateException"))
+            .thenReturn("testArg back");
+
+        assertEquals("testArg back", testService.retry2_delay10ms("testArg"));
+        verify(delegateMock, times(3)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void completable_future_that_fails_2times_is_retried_without_blocking_the_caller() throws Exception {
+        final List<String> attemptThreads = new CopyOnWriteArrayList<String>();
+        final CountDownLatch secondAttemptReleased = new CountDownLatch(1);
+        when(delegateMock.mockedAsyncMethod(anyString()))
+            .thenAnswer(new Answer<CompletableFuture<String>>() {
+                @Override
+                public CompletableFuture<String> answer(InvocationOnMock invocation) throws Throwable {
+                    attemptThreads.add(Thread.currentThread().getName());
+                    return failed(new IllegalStateException("first fake IllegalStateException"));
+                }
+            })
+            .thenAnswer(new Answer<CompletableFuture<String>>() {
+                @Override
+                public CompletableFuture<String> answer(InvocationOnMock invocation) throws Throwable {
+                    attemptThreads.add(Thread.currentThread().getName());
+                    secondAttemptReleased.await();
+                    return failed(new IllegalStateException("second fake IllegalStateException"));
+                }
+            })
+            .thenAnswer(new Answer<CompletableFuture<String>>() {
+                @Override
+                public CompletableFuture<String> answer(InvocationOnMock invocation) throws Throwable {
+                    attemptThreads.add(Thread.currentThread().getName());
+                    return CompletableFuture.completedFuture("testArg back");
+                }
+            });
+
+        CompletableFuture<String> result = testService.async_retry2_delay200ms("testArg");
+        assertFalse(result.isDone());
+        secondAttemptReleased.countDown();
+
+        assertEquals("testArg back", result.get(10, TimeUnit.SECONDS));
+        verify(delegateMock, times(3)).mockedAsyncMethod("testArg");
+        String caller = Thread.currentThread().getName();
+        assertEquals(3, attemptThreads.size());
+        assertEquals(caller, attemptThreads.get(0));
+        assertFalse(caller.equals(attemptThreads.get(1)));
+        assertFalse(caller.equals(attemptThreads.get(2)));
+    }
+
+    @Test
+    public void completable_future_that_keeps_failing_completes_with_the_last_exception() throws Exception {
+        when(delegateMock.mockedAsyncMethod(anyString()))
+            .thenReturn(failed(new IllegalStateException("first fake IllegalStateException")))
+            .thenReturn(failed(new IllegalStateException("second fake IllegalStateException")))
+            .thenReturn(failed(new IllegalStateException("third fake IllegalStateException")));
+
+        try {
+            testService.async_retry2_delay200ms("testArg").get(2, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertEquals("third fake IllegalStateException", expected.getCause().getMessage());
+        }
+        verify(delegateMock, times(3)).mockedAsyncMethod("testArg");
+    }
+
+    @Test
+    public void method_stops_retrying_once_its_retry_budget_is_spent() {
+        when(delegateMock.mockedMethod(anyString()))
+            .thenThrow(new IllegalStateException("fake IllegalStateException"));
+
+        // the budget holds a single retry and has no floor
+        for (int i = 0; i < 2; i++) {
+            try {
+                testService.retry2_with_budget_of_one_retry("testArg");
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException expected) {
+            }
+        }
+        verify(delegateMock, times(3)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void retry_that_cannot_finish_before_the_deadline_is_not_attempted() {
+        when(delegateMock.mockedMethod(anyString()))
+            .thenAnswer(new Answer<String>() {
+                @Override
+                public String answer(InvocationOnMock invocation) throws Throwable {
+                    Thread.sleep(20);
+                    return "testArg back";
+                }
+            });
+        // calls usually take 20ms
+        for (int i = 0; i < RetryStatistics.MIN_SAMPLES; i++) {
+            testService.retry2_delay10ms_deadline_aware("testArg");
+        }
+        reset(delegateMock);
+        when(delegateMock.mockedMethod(anyString()))
+            .thenThrow(new IllegalStateException("fake IllegalStateException"));
+
+        long retriesAvoided = Aspects.aspectOf(AnnotationRetryAspect.class).getRetriesAvoided();
+        DeadlineContext deadlineContext = DeadlineContext.current();
+        // 25ms leave room for the 10ms delay, but not for another 20ms call after it
+        long previousDeadline = deadlineContext.set(deadlineContext.deadlineAfter(25, TimeUnit.MILLISECONDS));
+        try {
+            testService.retry2_delay10ms_deadline_aware("testArg");
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        } finally {
+            deadlineContext.set(previousDeadline);
+        }
+        verify(delegateMock, times(1)).mockedMethod("testArg");
+        assertEquals(retriesAvoided + 1, Aspects.aspectOf(AnnotationRetryAspect.class).getRetriesAvoided());
+    }
+
+    private static CompletableFuture<String> failed(Throwable ex) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        future.completeExceptionally(ex);
+        return future;
+    }
+
+    @Component
+    private static class TestService {
+
+        @Autowired
+        private Delegate delegate;
+
+        @Retry(attempts = 2, delay = 10, exceptions = {IllegalStateException.class})
+        public String retry2_delay10ms(String arg) {
+            return delegate.mockedMethod(arg);
+        }
+
+        @Retry(attempts = 2, delay = 10, exceptions = {IllegalStateException.class}, budgetRatio = 0.001, budgetMinRetriesPerSecond = 0)
+        public String retry2_with_budget_of_one_retry(String arg) {
+            return delegate.mockedMethod(arg);
+        }
+
+        @Retry(attempts = 2, delay = 10, exceptions = {IllegalStateException.class})
+        public String retry2_delay10ms_deadline_aware(String arg) {
+            return delegate.mockedMethod(arg);
+        }
+
+        @Retry(attempts = 2, delay = 200, exceptions = {IllegalStateException.class})
+        public CompletableFuture<String> async_retry2_delay200ms(String arg) {
+            return delegate.mockedAsyncMethod(arg);
+        }
+    }
+
+    private static interface Delegate {
+        String mockedMethod(String arg);
+        CompletableFuture<String> mockedAsyncMethod(String arg);
+    }
+}
@@ -25,6 +25,7 @@ package com.crossbusiness.resiliency.aspect;
 
 import com.crossbusiness.resiliency.annotation.Async;
 import com.crossbusiness.resiliency.annotation.Timeout2;
+import org.aspectj.lang.Aspects;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
@@ -37,10 +38,15 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 /**
@@ -91,6 +97,48 @@ public class AnnotationTimeout2AspectTest {
         verifyZeroInteractions(delegateMock);
     }
 
+    @Test
+    public void method_that_times_out_is_cancelled_and_its_thread_interrupted() throws InterruptedException {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation)throws InterruptedException {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(2000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return "testArg back";
+            }
+        }).when(delegateMock).mockedMethod("testArg");
+
+        try {
+            testService.timeout2_1000ms("testArg");
+            fail("expected TimeoutException");
+        } catch (TimeoutException expected) {
+        }
+        assertTrue(interrupted.await(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void method_annotated_with_timeout2_fails_with_TimeoutException_when_its_executor_is_saturated() {
+        // executors are picked per method on its first call, so only this method gets the saturated one
+        Aspects.aspectOf(AnnotationTimeout2Aspect.class).setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("all threads busy");
+            }
+        });
+        try {
+            testService.timeout2_1000ms_saturated("testArg");
+            fail("expected TimeoutException");
+        } catch (TimeoutException expected) {
+            assertTrue(expected.getMessage().contains("rejected"));
+        } finally {
+            Aspects.aspectOf(AnnotationTimeout2Aspect.class).setExecutor(null);
+        }
+        verifyZeroInteractions(delegateMock);
+    }
+
     @Test
     public void void_method_that_takes_1000ms_and_annotated_with_timeout2_of_2000ms_and_async_will_get_routed_asynchronously() throws InterruptedException, TimeoutException {
         doNothing().when(delegateMock).mockedVoidMethod(anyString());
@@ -125,6 +173,11 @@ public class AnnotationTimeout2AspectTest {
             return delegate.mockedMethod(arg);
         }
 
+        @Timeout2(1000)
+        public String timeout2_1000ms_saturated(String arg) throws TimeoutException {
+            return delegate.mockedMethod(arg);
+        }
+
         /**
          * Note:  Precedence Order enforced. Timeout2(outer), Async(inner){@link SystemArchitecture}.
          */
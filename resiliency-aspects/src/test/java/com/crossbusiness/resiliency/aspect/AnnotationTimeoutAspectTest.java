@@ -37,9 +37,16 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 /**
@@ -90,6 +97,75 @@ public class AnnotationTimeoutAspectTest {
         verifyZeroInteractions(delegateMock);
     }
 
+    @Test
+    public void nested_methods_annotated_with_timeout_share_the_deadline_of_the_outer_method() throws InterruptedException {
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation)throws InterruptedException {
+                TimeUnit.MILLISECONDS.sleep(600);
+                return "testArg back";
+            }
+        }).when(delegateMock).mockedMethod("testArg");
+
+        long start = System.currentTimeMillis();
+        try {
+            testService.timeout_1000ms_calling_timeout_2000ms_3times("testArg");
+            fail("expected InterruptedException");
+        } catch (InterruptedException expected) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        verify(delegateMock, times(2)).mockedMethod("testArg");
+    }
+
+    @Test
+    public void completable_future_that_does_not_complete_within_timeout_of_200ms_completes_with_TimeoutException() throws Exception {
+        CompletableFuture<String> pending = new CompletableFuture<String>();
+        CompletableFuture<String> done = new CompletableFuture<String>();
+
+        CompletableFuture<String> timedOut = testService.async_timeout_200ms(pending);
+        CompletableFuture<String> completed = testService.async_timeout_200ms(done);
+        done.complete("testArg back");
+
+        assertEquals("testArg back", completed.get());
+        try {
+            timedOut.get(1000, TimeUnit.MILLISECONDS);
+            fail("expected TimeoutException");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof TimeoutException);
+        }
+        // only the copy handed to this caller timed out, the future of the method is left to its other holders
+        assertFalse(pending.isDone());
+        pending.complete("late");
+        assertEquals("late", pending.get());
+    }
+
+    @Test
+    public void concurrent_calls_with_the_same_deadline_are_all_interrupted() throws InterruptedException {
+        doAnswer(new Answer<Object>() {
+            public Object answer(InvocationOnMock invocation)throws InterruptedException {
+                TimeUnit.MILLISECONDS.sleep(2000);
+                return "testArg back";
+            }
+        }).when(delegateMock).mockedMethod("testArg");
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        testService.timeout_1000ms("testArg");
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(interrupted.await(1900, TimeUnit.MILLISECONDS));
+    }
+
     @Test
     public void void_method_that_takes_1s_and_annotated_with_timeout_of_2s_and_async_will_get_routed_asynchronously() throws InterruptedException {
         doNothing().when(delegateMock).mockedVoidMethod(anyString());
@@ -124,6 +200,18 @@ public class AnnotationTimeoutAspectTest {
             return delegate.mockedMethod(arg);
         }
 
+        @Timeout(value = 200, unit = TimeUnit.MILLISECONDS)
+        public CompletableFuture<String> async_timeout_200ms(CompletableFuture<String> result) throws InterruptedException {
+            return result;
+        }
+
+        @Timeout(value = 1000, unit = TimeUnit.MILLISECONDS)
+        public String timeout_1000ms_calling_timeout_2000ms_3times(String arg) throws InterruptedException {
+            timeout_2000ms(arg);
+            timeout_2000ms(arg);
+            return timeout_2000ms(arg);
+        }
+
         /**
          * Note:  Precedence Order enforced. Timeout(outer), Async(inner){@link SystemArchitecture}.
          */
@@ -0,0 +1,73 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link CircuitBreakerEventPublisher}.
+ */
+public class CircuitBreakerEventPublisherTest extends TestCase {
+
+    @Test
+    public void test_dispatcher_exits_with_the_last_consumer_and_restarts_with_the_next_one() throws Exception {
+        CircuitBreakerEventPublisher publisher = new CircuitBreakerEventPublisher(16);
+        RecordingConsumer consumer = new RecordingConsumer();
+
+        assertFalse(publisher.publish(CircuitBreakerEventType.FAILURE, "service()", null, null, 0));
+
+        publisher.addConsumer(consumer);
+        assertTrue(publisher.publish(CircuitBreakerEventType.FAILURE, "service()", null, null, 0));
+        Thread first = consumer.threads.poll(10, TimeUnit.SECONDS);
+        assertNotNull(first);
+
+        publisher.removeConsumer(consumer);
+        first.join(10000);
+        assertFalse(first.isAlive());
+        assertFalse(publisher.publish(CircuitBreakerEventType.FAILURE, "service()", null, null, 0));
+
+        publisher.addConsumer(consumer);
+        assertTrue(publisher.publish(CircuitBreakerEventType.SUCCESS, "service()", null, null, 0));
+        Thread second = consumer.threads.poll(10, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertNotSame(first, second);
+        publisher.removeConsumer(consumer);
+    }
+
+    private static class RecordingConsumer implements CircuitBreakerEventConsumer {
+
+        final BlockingQueue<Thread> threads = new LinkedBlockingQueue<Thread>();
+
+        @Override
+        public void onEvent(CircuitBreakerEvent event) {
+            threads.add(Thread.currentThread());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import com.crossbusiness.resiliency.annotation.CircuitBreaker;
+import com.crossbusiness.resiliency.exception.OpenCircuitException;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.runtime.reflect.Factory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark for the per call cost of resolving the circuit breaker of a join point.
+ * <p/>
+ * <code>signatureKey</code> is the old hot path: build the method key with <code>toLongString()</code>
+ * and look the entry up by it for registration and again for the status check.
+ * <code>joinPointHandle</code> is the current one: a single identity lookup on the join point static part.
+ * <p/>
+ * Run with <code>gradle :resiliency-aspects:jmh</code>.
+ *
+ * Created by Sumanth Chinthagunta <xmlking@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CircuitBreakerLookupBenchmark {
+
+    private CircuitBreakerMethodRegistry registry;
+
+    private JoinPoint.StaticPart staticPart;
+
+    private CircuitBreaker circuitBreakerConfig;
+
+    @Setup
+    public void setUp() throws NoSuchMethodException {
+        Method method = GuardedService.class.getMethod("call", String.class);
+        Factory factory = new Factory("CircuitBreakerLookupBenchmark.java", GuardedService.class);
+        staticPart = factory.makeSJP(JoinPoint.METHOD_EXECUTION,
+                factory.makeMethodSig(method.getModifiers(), method.getName(), GuardedService.class,
+                        method.getParameterTypes(), new String[]{"arg"}, method.getExceptionTypes(), method.getReturnType()), 0);
+        circuitBreakerConfig = method.getAnnotation(CircuitBreaker.class);
+        registry = new CircuitBreakerMethodRegistry();
+        registry.registeredMehtodIfnecessary(staticPart, circuitBreakerConfig);
+    }
+
+    @Benchmark
+    public long signatureKey() {
+        String method = staticPart.getSignature().toLongString();
+        registry.registeredMehtodIfnecessary(method, circuitBreakerConfig);
+        return registry.getCallTokenWithHalfOpenExclusiveLockTry(registry.getEntry(method));
+    }
+
+    @Benchmark
+    public long joinPointHandle() {
+        CircuitBreakerRegistryEntry breaker = registry.registeredMehtodIfnecessary(staticPart, circuitBreakerConfig);
+        return registry.getCallTokenWithHalfOpenExclusiveLockTry(breaker);
+    }
+
+    public static class GuardedService {
+        @CircuitBreaker
+        public String call(String arg) throws OpenCircuitException {
+            return arg;
+        }
+    }
+}
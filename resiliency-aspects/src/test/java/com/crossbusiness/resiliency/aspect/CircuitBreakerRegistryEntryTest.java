@@ -0,0 +1,105 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link CircuitBreakerRegistryEntry} and the call tokens of {@link CircuitBreakerMethodRegistry}.
+ */
+public class CircuitBreakerRegistryEntryTest extends TestCase {
+
+    private static final List<Class<? extends Throwable>> FAILURE_INDICATIONS = Collections.<Class<? extends Throwable>>singletonList(Exception.class);
+
+    @Test
+    public void test_failures_wrap_around_a_ring_buffer_of_failureThreshold_times() {
+        CircuitBreakerRegistryEntry entry = new CircuitBreakerRegistryEntry("ring()", 3, 1000l, 1000l, FAILURE_INDICATIONS);
+
+        assertFalse(entry.addFailure(0, 0));
+        assertFalse(entry.addFailure(100, 0));
+        assertFalse(entry.addFailure(1500, 0)); // buffer full, but the oldest failure is out of the time frame
+        assertEquals(Arrays.asList(0l, 100l, 1500l), entry.getFailures());
+
+        assertFalse(entry.addFailure(1600, 0)); // overwrites the oldest failure
+        assertEquals(Arrays.asList(100l, 1500l, 1600l), entry.getFailures());
+
+        assertTrue(entry.addFailure(2000, 0)); // 3 failures within 1000 ms
+        assertEquals(Arrays.asList(1500l, 1600l, 2000l), entry.getFailures());
+    }
+
+    @Test
+    public void test_failure_reported_with_a_token_of_an_earlier_closed_cycle_does_not_open_the_circuit() {
+        CircuitBreakerMethodRegistry registry = new CircuitBreakerMethodRegistry();
+        CircuitBreakerRegistryEntry entry = new CircuitBreakerRegistryEntry("token()", 2, 60000l, 0l, FAILURE_INDICATIONS);
+
+        long staleToken = registry.getCallTokenWithHalfOpenExclusiveLockTry(entry);
+        assertEquals(CircuitBreakerStatus.CLOSED, CircuitBreakerMethodRegistry.statusOf(staleToken));
+
+        // while that call runs, the circuit opens and closes again
+        long now = System.currentTimeMillis();
+        entry.addFailure(now, 0);
+        assertTrue(entry.addFailure(now, 0));
+        assertTrue(entry.tryOpen(0, now));
+        long trialToken = registry.getCallTokenWithHalfOpenExclusiveLockTry(entry);
+        assertEquals(CircuitBreakerStatus.HALF_OPEN_EXCLUSIVE, CircuitBreakerMethodRegistry.statusOf(trialToken));
+        assertEquals(CircuitBreakerStatus.CLOSED, registry.halfOpenTrialSucceeded(entry, trialToken, 0));
+        assertEquals(2, entry.getClosedCycleCounter());
+
+        assertFalse(registry.sameClosedCycleInLocalAndGlobaleContext(entry, staleToken));
+        assertFalse(registry.addFailureAndOpenCircuitIfThresholdAchived(entry, staleToken, 0));
+        assertFalse(registry.addFailureAndOpenCircuitIfThresholdAchived(entry, staleToken, 0)); // threshold reached, wrong cycle
+        assertEquals(CircuitBreakerStatus.CLOSED, entry.getStatus());
+
+        long token = registry.getCallTokenWithHalfOpenExclusiveLockTry(entry);
+        assertTrue(registry.sameClosedCycleInLocalAndGlobaleContext(entry, token));
+        assertTrue(registry.addFailureAndOpenCircuitIfThresholdAchived(entry, token, 0));
+        assertEquals(CircuitBreakerStatus.OPEN, entry.getStatus());
+    }
+
+    @Test
+    public void test_late_open_of_an_earlier_closed_cycle_leaves_the_open_period_alone() {
+        CircuitBreakerRegistryEntry entry = new CircuitBreakerRegistryEntry("late()", 1, 60000l, 1000l, FAILURE_INDICATIONS);
+
+        assertTrue(entry.tryOpen(0, 5000));
+        long openDurationMs = entry.getOpenDurationMs();
+
+        // a thread that saw the threshold in the same cycle loses the transition
+        assertFalse(entry.tryOpen(0, 5500));
+        assertEquals(5000, entry.getLastOpenedTime());
+        assertEquals(openDurationMs, entry.getOpenDurationMs());
+
+        // and so does one of a cycle that is over, while a later cycle is OPEN
+        assertTrue(entry.tryAcquireTrialPermit(5000 + openDurationMs) > 0);
+        assertEquals(CircuitBreakerStatus.OPEN, entry.recordTrial(1, false, 6500));
+        assertFalse(entry.tryOpen(0, 9000));
+        assertEquals(6500, entry.getLastOpenedTime());
+        assertEquals(1, entry.getConsecutiveReopens());
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link CircuitBreakerSharedMemory}. Two mappings of the same file stand in for two processes.
+ */
+public class CircuitBreakerSharedMemoryTest extends TestCase {
+
+    private static final List<Class<? extends Throwable>> FAILURE_INDICATIONS = Collections.<Class<? extends Throwable>>singletonList(Exception.class);
+
+    @Test
+    public void test_breakers_of_two_processes_count_failures_and_trip_together() throws Exception {
+        File file = File.createTempFile("circuitbreaker", ".shared");
+        file.delete();
+        file.deleteOnExit();
+
+        CircuitBreakerRegistryEntry first = newEntry(new CircuitBreakerSharedMemory(file, 16), "service()");
+        CircuitBreakerRegistryEntry second = newEntry(new CircuitBreakerSharedMemory(file, 16), "service()");
+        CircuitBreakerRegistryEntry other = newEntry(new CircuitBreakerSharedMemory(file, 16), "other()");
+        long now = System.currentTimeMillis();
+
+        assertFalse(first.addFailure(now, 0));
+        assertTrue(second.addFailure(now, 0));
+        assertTrue(second.tryOpen(0, now));
+
+        assertEquals(CircuitBreakerStatus.OPEN, first.getStatus());
+        assertEquals(now, first.getLastOpenedTime());
+        assertFalse(first.tryOpen(0, now));
+        assertEquals(CircuitBreakerStatus.CLOSED, other.getStatus());
+
+        long trialCycle = first.tryAcquireTrialPermit(now + 1000);
+        assertEquals(1, trialCycle);
+        assertEquals(-1, second.tryAcquireTrialPermit(now + 1000));
+        assertEquals(CircuitBreakerStatus.CLOSED, first.recordTrial(trialCycle, true, now + 1000));
+        assertEquals(CircuitBreakerStatus.CLOSED, second.getStatus());
+        assertEquals(2, second.getClosedCycleCounter());
+
+        // opening cleared the shared failure count
+        assertFalse(first.addFailure(now + 1000, 0));
+    }
+
+    @Test
+    public void test_trial_permit_of_a_process_that_died_expires_after_the_open_period() throws Exception {
+        File file = File.createTempFile("circuitbreaker", ".shared");
+        file.delete();
+        file.deleteOnExit();
+
+        CircuitBreakerRegistryEntry dead = newEntry(new CircuitBreakerSharedMemory(file, 16), "service()");
+        CircuitBreakerRegistryEntry alive = newEntry(new CircuitBreakerSharedMemory(file, 16), "service()");
+        long now = System.currentTimeMillis();
+        dead.addFailure(now, 0);
+        dead.addFailure(now, 0);
+        assertTrue(dead.tryOpen(0, now));
+
+        // the process dies holding the only trial permit, without recording its outcome
+        assertEquals(1, dead.tryAcquireTrialPermit(now + 1000));
+        assertEquals(-1, alive.tryAcquireTrialPermit(now + 1500));
+        assertEquals(CircuitBreakerStatus.HALF_OPEN, alive.getStatus());
+
+        // after another open period the trial starts over in a new cycle
+        long trialCycle = alive.tryAcquireTrialPermit(now + 2000);
+        assertEquals(2, trialCycle);
+        assertEquals(CircuitBreakerStatus.CLOSED, alive.recordTrial(trialCycle, true, now + 2000));
+        // a late outcome of the lost trial changes nothing
+        assertEquals(CircuitBreakerStatus.CLOSED, dead.recordTrial(1, false, now + 2000));
+        assertEquals(CircuitBreakerStatus.CLOSED, dead.getStatus());
+    }
+
+    @Test
+    public void test_failures_are_added_to_the_shared_count_in_batches_of_a_quarter_of_the_threshold() throws Exception {
+        File file = File.createTempFile("circuitbreaker", ".shared");
+        file.delete();
+        file.deleteOnExit();
+
+        CircuitBreakerRegistryEntry first = newEntry(new CircuitBreakerSharedMemory(file, 16), "service()", 8);
+        CircuitBreakerRegistryEntry second = newEntry(new CircuitBreakerSharedMemory(file, 16), "service()", 8);
+        long now = System.currentTimeMillis();
+
+        assertFalse(first.addFailure(now, 0)); // starts the window, shared count 1
+        assertFalse(first.addFailure(now, 0)); // held back
+        for (int i = 0; i < 6; i++) {
+            assertFalse(second.addFailure(now, 0)); // shared count 2, 4, 6, the last one held back
+        }
+        // 8 failures so far, but each process holds one back
+        assertTrue(first.addFailure(now, 0));
+        assertTrue(second.tryOpen(0, now));
+        assertEquals(CircuitBreakerStatus.OPEN, first.getStatus());
+    }
+
+    @Test
+    public void test_transition_written_by_another_process_is_read_once_the_slot_sequence_changes() throws Exception {
+        File file = File.createTempFile("circuitbreaker", ".shared");
+        file.delete();
+        file.deleteOnExit();
+
+        CircuitBreakerRegistryEntry entry = newEntry(new CircuitBreakerSharedMemory(file, 4), "service()");
+        assertEquals(CircuitBreakerStatus.CLOSED, entry.getStatus());
+
+        // another process opens the circuit, without the monitors of this JVM
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer = raw.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raw.length());
+            int slot = 64;
+            while (buffer.getLong(slot) == 0) {
+                slot += 128;
+            }
+            buffer.putLong(slot + 8, CircuitBreakerRegistryEntry.encode(CircuitBreakerStatus.OPEN, 0));
+            buffer.putLong(slot + 16, 5000);
+            buffer.putLong(slot + 24, 1000);
+            assertEquals(CircuitBreakerStatus.CLOSED, entry.getStatus()); // same sequence, the published copy is used
+
+            buffer.putLong(slot + 64, buffer.getLong(slot + 64) + 1);
+            assertEquals(CircuitBreakerStatus.OPEN, entry.getStatus());
+            assertEquals(5000, entry.getLastOpenedTime());
+            assertEquals(1000, entry.getOpenDurationMs());
+        } finally {
+            raw.close();
+        }
+    }
+
+    @Test
+    public void test_interrupted_caller_keeps_its_interrupt_and_the_shared_state_keeps_working() throws Exception {
+        File file = File.createTempFile("circuitbreaker", ".shared");
+        file.delete();
+        file.deleteOnExit();
+
+        CircuitBreakerRegistryEntry first = newEntry(new CircuitBreakerSharedMemory(file, 16), "service()");
+        CircuitBreakerRegistryEntry second = newEntry(new CircuitBreakerSharedMemory(file, 16), "service()");
+        long now = System.currentTimeMillis();
+
+        Thread.currentThread().interrupt();
+        try {
+            assertFalse(first.addFailure(now, 0));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(second.addFailure(now, 0));
+        assertTrue(first.tryOpen(0, now));
+        assertEquals(CircuitBreakerStatus.OPEN, second.getStatus());
+    }
+
+    @Test
+    public void test_file_of_another_kind_is_rejected() throws Exception {
+        File file = File.createTempFile("circuitbreaker", ".shared");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "not a circuit breaker".getBytes("UTF-8"));
+
+        try {
+            new CircuitBreakerSharedMemory(file, 16);
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not a circuit breaker shared state file"));
+        }
+    }
+
+    private static CircuitBreakerRegistryEntry newEntry(CircuitBreakerSharedMemory memory, String name) {
+        return newEntry(memory, name, 2);
+    }
+
+    private static CircuitBreakerRegistryEntry newEntry(CircuitBreakerSharedMemory memory, String name, int failureThreshold) {
+        return new CircuitBreakerRegistryEntry(name, failureThreshold, 60000l, 1000l, FAILURE_INDICATIONS, null, 1, 100, 1, 0, 0,
+                Collections.<Class<? extends Throwable>>emptyList(), memory.stateFor(name));
+    }
+}
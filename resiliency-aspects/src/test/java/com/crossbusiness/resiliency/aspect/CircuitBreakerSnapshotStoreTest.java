@@ -0,0 +1,96 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link CircuitBreakerSnapshotStore}.
+ */
+public class CircuitBreakerSnapshotStoreTest extends TestCase {
+
+    private static final List<Class<? extends Throwable>> FAILURE_INDICATIONS = Collections.<Class<? extends Throwable>>singletonList(Exception.class);
+
+    @Test
+    public void test_open_circuit_is_restored_open_with_its_failures_and_window() throws Exception {
+        File file = File.createTempFile("circuitbreaker", ".snapshot");
+        file.deleteOnExit();
+        long now = System.currentTimeMillis();
+
+        CircuitBreakerRegistryEntry open = newEntry("open()");
+        open.addFailure(now - 10, 0);
+        open.addFailure(now - 5, 0);
+        assertTrue(open.tryOpen(0, now));
+        open.addFailure(now, 0);
+        CircuitBreakerRegistryEntry closed = newEntry("closed()");
+        closed.addFailure(now, 0);
+
+        new CircuitBreakerSnapshotStore(file).write(Arrays.asList(open, closed));
+
+        CircuitBreakerSnapshotStore store = new CircuitBreakerSnapshotStore(file);
+        assertEquals(2, store.load());
+
+        CircuitBreakerRegistryEntry restoredOpen = newEntry("open()");
+        assertTrue(store.restore(restoredOpen));
+        assertEquals(CircuitBreakerStatus.OPEN, restoredOpen.getStatus());
+        assertEquals(now, restoredOpen.getLastOpenedTime());
+        assertEquals(open.getFailures(), restoredOpen.getFailures());
+        assertEquals(1, restoredOpen.getSlidingWindow().getFailures());
+
+        CircuitBreakerRegistryEntry restoredClosed = newEntry("closed()");
+        assertTrue(store.restore(restoredClosed));
+        assertEquals(CircuitBreakerStatus.CLOSED, restoredClosed.getStatus());
+        assertEquals(Arrays.asList(now), restoredClosed.getFailures());
+
+        assertFalse(store.restore(newEntry("unknown()")));
+    }
+
+    @Test
+    public void test_torn_snapshot_is_ignored() throws Exception {
+        File file = File.createTempFile("circuitbreaker", ".snapshot");
+        file.deleteOnExit();
+        CircuitBreakerRegistryEntry open = newEntry("open()");
+        open.tryOpen(0, System.currentTimeMillis());
+        new CircuitBreakerSnapshotStore(file).write(Collections.singletonList(open));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(0);
+        raf.close();
+
+        assertEquals(0, new CircuitBreakerSnapshotStore(file).load());
+    }
+
+    private static CircuitBreakerRegistryEntry newEntry(String name) {
+        return new CircuitBreakerRegistryEntry(name, 3, 60000l, 10000l, FAILURE_INDICATIONS,
+                new CircuitBreakerSlidingWindow(60000l, 10, 100, 0, 1000l, 100));
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for {@link DeadlineContext}.
+ */
+public class DeadlineContextTest extends TestCase {
+
+    @Test
+    public void test_inner_deadline_never_extends_the_outer_one() {
+        DeadlineContext context = DeadlineContext.current();
+        assertEquals(DeadlineContext.NONE, context.getDeadline());
+        assertEquals(Long.MAX_VALUE, context.remaining(TimeUnit.MILLISECONDS));
+        assertEquals(DeadlineContext.NONE, context.deadlineAfter(Long.MAX_VALUE, TimeUnit.MILLISECONDS));
+
+        long outer = context.set(context.deadlineAfter(1, TimeUnit.SECONDS));
+        try {
+            long deadline = context.getDeadline();
+            assertEquals(deadline, context.deadlineAfter(5, TimeUnit.SECONDS));
+            assertTrue(context.deadlineAfter(100, TimeUnit.MILLISECONDS) - deadline < 0);
+
+            long inner = context.set(context.deadlineAfter(100, TimeUnit.MILLISECONDS));
+            assertTrue(context.remaining(TimeUnit.MILLISECONDS) <= 100);
+            context.set(inner);
+            assertEquals(deadline, context.getDeadline());
+        } finally {
+            context.set(outer);
+        }
+        assertEquals(DeadlineContext.NONE, context.getDeadline());
+    }
+
+    @Test
+    public void test_remaining_is_not_positive_once_the_deadline_passed() throws InterruptedException {
+        DeadlineContext context = DeadlineContext.current();
+        long previous = context.set(context.deadlineAfter(1, TimeUnit.MILLISECONDS));
+        try {
+            TimeUnit.MILLISECONDS.sleep(5);
+            assertTrue(context.remaining(TimeUnit.SECONDS) <= 0);
+        } finally {
+            context.set(previous);
+        }
+    }
+}
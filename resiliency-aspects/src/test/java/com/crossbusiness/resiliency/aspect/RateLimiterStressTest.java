@@ -0,0 +1,123 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stress test for {@link RateLimiter}: many threads call a limiter for a while, half of them blocking, and every
+ * window of one period is checked to hold no more than the limit of allowed calls.
+ * <p/>
+ * A call is allowed at some instant between the clock reads before and after acquiring. Only calls
+ * that were allowed certainly inside a window count for it, so preemption of a thread cannot fail the test,
+ * while a limiter that over-admits does.
+ */
+public class RateLimiterStressTest extends TestCase {
+
+    static final int THREADS = 16;
+    static final int LIMIT = 50;
+    static final long PERIOD_MS = 20;
+    static final long DURATION_MS = 1000;
+
+    @Test
+    public void test_no_window_of_one_period_holds_more_than_the_limit() throws Exception {
+        final RateLimiter limiter = new RateLimiter(LIMIT, PERIOD_MS, TimeUnit.MILLISECONDS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[][] calls = new long[THREADS][];
+        final int[] counts = new int[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            final boolean blocking = i % 2 == 0;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] allowed = new long[1024];
+                    int count = 0;
+                    try {
+                        start.await();
+                        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MS);
+                        long before;
+                        while ((before = System.nanoTime()) - end < 0) {
+                            boolean granted;
+                            if (blocking) {
+                                limiter.acquire();
+                                granted = true;
+                            } else {
+                                granted = limiter.tryAcquire();
+                            }
+                            long after = System.nanoTime();
+                            if (granted) {
+                                if (count + 2 > allowed.length) {
+                                    allowed = Arrays.copyOf(allowed, allowed.length * 2);
+                                }
+                                allowed[count++] = before;
+                                allowed[count++] = after;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    calls[thread] = allowed;
+                    counts[thread] = count;
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<long[]> allowed = new ArrayList<long[]>();
+        for (int i = 0; i < THREADS; i++) {
+            for (int j = 0; j < counts[i]; j += 2) {
+                allowed.add(new long[]{calls[i][j], calls[i][j + 1]});
+            }
+        }
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(PERIOD_MS);
+        int busiest = 0;
+        for (long[] first : allowed) {
+            int inWindow = 0;
+            for (long[] call : allowed) {
+                if (call[0] - first[0] >= 0 && call[1] - first[0] < periodNanos) {
+                    inWindow++;
+                }
+            }
+            busiest = Math.max(busiest, inWindow);
+        }
+        assertTrue("a window of " + PERIOD_MS + "ms held " + busiest + " calls", busiest <= LIMIT);
+        // the limiter is not starving the callers either
+        long windows = DURATION_MS / PERIOD_MS;
+        assertTrue("only " + allowed.size() + " calls allowed", allowed.size() >= LIMIT * windows / 2);
+    }
+}
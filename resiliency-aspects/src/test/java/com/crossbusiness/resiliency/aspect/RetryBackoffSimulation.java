@@ -0,0 +1,155 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import com.crossbusiness.resiliency.annotation.Retry;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulates clients that fail together against a stub dependency and retry with each {@link Retry.Backoff}
+ * strategy, to show how the retry load spreads over time. Runs in virtual time, so it is fast and repeatable.
+ * <p/>
+ * Run with: gradle retrySimulation
+ */
+public class RetryBackoffSimulation {
+
+    static final int CLIENTS = 1000;
+    static final int ATTEMPTS = 10;
+    static final long DELAY_MS = 50;
+    static final double MULTIPLIER = 2;
+    static final long MAX_DELAY_MS = 3000;
+    // the dependency fails every call until it recovers
+    static final long OUTAGE_MS = 1000;
+    static final long BUCKET_MS = 100;
+
+    public static void main(String[] args) {
+        System.out.printf("%d clients fail together, dependency down for %d ms, delay %d ms, multiplier %.1f, cap %d ms%n%n",
+                CLIENTS, OUTAGE_MS, DELAY_MS, MULTIPLIER, MAX_DELAY_MS);
+        System.out.printf("%-20s %8s %12s %12s %14s %16s%n",
+                "backoff", "calls", "burst/1ms", "peak/100ms", "failed calls", "last success ms");
+        for (Retry.Backoff backoff : Retry.Backoff.values()) {
+            Result result = simulate(backoff, new Random(42));
+            System.out.printf("%-20s %8d %12d %12d %14d %16s%n",
+                    backoff, result.calls, result.burst(), result.peak(), result.failedCalls,
+                    result.lastSuccess < 0 ? "-" : String.valueOf(result.lastSuccess));
+        }
+    }
+
+    static Result simulate(Retry.Backoff backoff, Random random) {
+        StubDependency dependency = new StubDependency(OUTAGE_MS);
+        Result result = new Result();
+        PriorityQueue<Attempt> attempts = new PriorityQueue<Attempt>();
+        for (int i = 0; i < CLIENTS; i++) {
+            attempts.add(new Attempt(0, 1, 0));
+        }
+        while (!attempts.isEmpty()) {
+            Attempt attempt = attempts.poll();
+            result.record(attempt.time);
+            if (dependency.call(attempt.time)) {
+                result.lastSuccess = Math.max(result.lastSuccess, attempt.time);
+                continue;
+            }
+            result.failedCalls++;
+            if (attempt.number > ATTEMPTS) {
+                continue;
+            }
+            long delay = RetryBackoff.delay(backoff, DELAY_MS, MULTIPLIER, MAX_DELAY_MS, attempt.number, attempt.previousDelay, random);
+            attempts.add(new Attempt(attempt.time + delay, attempt.number + 1, delay));
+        }
+        return result;
+    }
+
+    /**
+     * Fails every call until it recovers.
+     */
+    static final class StubDependency {
+        private final long recoversAt;
+
+        StubDependency(long recoversAt) {
+            this.recoversAt = recoversAt;
+        }
+
+        boolean call(long now) {
+            return now >= recoversAt;
+        }
+    }
+
+    static final class Attempt implements Comparable<Attempt> {
+        final long time;
+        final int number;
+        final long previousDelay;
+
+        Attempt(long time, int number, long previousDelay) {
+            this.time = time;
+            this.number = number;
+            this.previousDelay = previousDelay;
+        }
+
+        @Override
+        public int compareTo(Attempt other) {
+            return Long.compare(time, other.time);
+        }
+    }
+
+    static final class Result {
+        final int[] buckets = new int[1000];
+        final int[] millis = new int[(int) (buckets.length * BUCKET_MS)];
+        int calls;
+        int failedCalls;
+        // stays -1 when every client gave up before the dependency recovered
+        long lastSuccess = -1;
+
+        void record(long time) {
+            calls++;
+            buckets[(int) Math.min(buckets.length - 1, time / BUCKET_MS)]++;
+            millis[(int) Math.min(millis.length - 1, time)]++;
+        }
+
+        /**
+         * Most retries that hit the dependency in the same millisecond.
+         */
+        int burst() {
+            int burst = 0;
+            // the first millisecond holds the initial calls of all clients
+            for (int i = 1; i < millis.length; i++) {
+                burst = Math.max(burst, millis[i]);
+            }
+            return burst;
+        }
+
+        /**
+         * Most retries that hit the dependency in the same {@link #BUCKET_MS} window.
+         */
+        int peak() {
+            int peak = 0;
+            // the first bucket holds the initial calls of all clients
+            for (int i = 1; i < buckets.length; i++) {
+                peak = Math.max(peak, buckets[i]);
+            }
+            return peak;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import com.crossbusiness.resiliency.annotation.Retry;
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Unit tests for {@link RetryBackoff}.
+ */
+public class RetryBackoffTest extends TestCase {
+
+    @Test
+    public void test_exponential_delay_grows_by_the_multiplier_up_to_the_cap() {
+        Random random = new Random(1);
+        assertEquals(100, RetryBackoff.delay(Retry.Backoff.FIXED, 100, 2, 0, 5, 100, random));
+        assertEquals(100, RetryBackoff.delay(Retry.Backoff.EXPONENTIAL, 100, 2, 0, 1, 0, random));
+        assertEquals(800, RetryBackoff.delay(Retry.Backoff.EXPONENTIAL, 100, 2, 0, 4, 400, random));
+        assertEquals(500, RetryBackoff.delay(Retry.Backoff.EXPONENTIAL, 100, 2, 500, 4, 400, random));
+        assertEquals(500, RetryBackoff.delay(Retry.Backoff.EXPONENTIAL, 100, 2, 500, 100, 500, random));
+    }
+
+    @Test
+    public void test_jittered_delays_stay_within_their_bounds() {
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            long full = RetryBackoff.delay(Retry.Backoff.FULL_JITTER, 100, 2, 0, 4, 0, random);
+            assertTrue(full >= 0 && full <= 800);
+            long equal = RetryBackoff.delay(Retry.Backoff.EQUAL_JITTER, 100, 2, 0, 4, 0, random);
+            assertTrue(equal >= 400 && equal <= 800);
+            long decorrelated = RetryBackoff.delay(Retry.Backoff.DECORRELATED_JITTER, 100, 2, 1000, 4, 400, random);
+            assertTrue(decorrelated >= 100 && decorrelated <= 1000);
+        }
+    }
+
+    @Test
+    public void test_jitter_spreads_the_retries_of_clients_that_failed_together() {
+        RetryBackoffSimulation.Result exponential = RetryBackoffSimulation.simulate(Retry.Backoff.EXPONENTIAL, new Random(42));
+        RetryBackoffSimulation.Result fullJitter = RetryBackoffSimulation.simulate(Retry.Backoff.FULL_JITTER, new Random(42));
+        // without jitter every client retries in the same instant
+        assertEquals(RetryBackoffSimulation.CLIENTS, exponential.burst());
+        assertTrue(fullJitter.burst() < RetryBackoffSimulation.CLIENTS / 10);
+        assertTrue(fullJitter.peak() < exponential.peak());
+    }
+}
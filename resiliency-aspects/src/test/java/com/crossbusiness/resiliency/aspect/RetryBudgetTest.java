@@ -0,0 +1,107 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link RetryBudget}.
+ */
+public class RetryBudgetTest extends TestCase {
+
+    @Test
+    public void test_retries_are_capped_at_the_ratio_of_successful_calls() {
+        RetryBudget budget = new RetryBudget("test", 0.1, 0);
+        assertEquals(100, budget.getAvailableRetries());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(budget.tryRetry());
+        }
+        assertFalse(budget.tryRetry());
+        assertEquals(1, budget.getRejectedRetries());
+
+        for (int i = 0; i < 25; i++) {
+            budget.onSuccess();
+        }
+        assertTrue(budget.tryRetry());
+        assertTrue(budget.tryRetry());
+        assertFalse(budget.tryRetry());
+    }
+
+    @Test
+    public void test_balance_does_not_grow_past_its_capacity() {
+        RetryBudget budget = new RetryBudget("test", 0.1, 0);
+        for (int i = 0; i < 10 * RetryBudget.CAPACITY_CALLS; i++) {
+            budget.onSuccess();
+        }
+        assertEquals(100, budget.getAvailableRetries());
+    }
+
+    @Test
+    public void test_floor_allows_a_few_retries_per_second_without_successes() {
+        RetryBudget budget = new RetryBudget("test", 0.001, 3);
+        assertTrue(budget.tryRetry());
+        // the single banked retry is spent, the floor allows 3 more this second
+        assertTrue(budget.tryRetry());
+        assertTrue(budget.tryRetry());
+        assertTrue(budget.tryRetry());
+        assertFalse(budget.tryRetry());
+    }
+
+    @Test
+    public void test_concurrent_retries_never_overdraw_the_budget() throws Exception {
+        final RetryBudget budget = new RetryBudget("test", 0.1, 0);
+        final AtomicInteger granted = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 1000; j++) {
+                        if (budget.tryRetry()) {
+                            granted.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100, granted.get());
+        assertEquals(8 * 1000 - 100, budget.getRejectedRetries());
+    }
+}
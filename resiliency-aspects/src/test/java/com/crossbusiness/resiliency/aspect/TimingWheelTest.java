@@ -0,0 +1,130 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c)  2014 CrossBusiness, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.crossbusiness.resiliency.aspect;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link TimingWheel}.
+ */
+public class TimingWheelTest extends TestCase {
+
+    @Test
+    public void test_timeouts_with_the_same_deadline_all_expire_after_their_delay() throws Exception {
+        TimingWheel wheel = new TimingWheel(Executors.defaultThreadFactory(), 1, TimeUnit.MILLISECONDS, 8);
+        final CountDownLatch expired = new CountDownLatch(100);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                expired.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            // 8 ticks per wheel, so these go round more than once
+            wheel.schedule(task, 20, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(expired.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(0, wheel.pending());
+    }
+
+    @Test
+    public void test_cancelled_timeout_does_not_run() throws Exception {
+        TimingWheel wheel = new TimingWheel(Executors.defaultThreadFactory(), 1, TimeUnit.MILLISECONDS, 8);
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        TimingWheel.Timeout cancelled = wheel.schedule(task, 10, TimeUnit.MILLISECONDS);
+        TimingWheel.Timeout expired = wheel.schedule(task, 10, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertEquals(1, wheel.pending());
+
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(1, runs.get());
+        assertTrue(cancelled.isCancelled());
+        assertTrue(expired.isExpired());
+        assertFalse(expired.cancel());
+    }
+
+    @Test
+    public void test_idle_wheel_picks_up_new_timeouts() throws Exception {
+        TimingWheel wheel = new TimingWheel(Executors.defaultThreadFactory(), 1, TimeUnit.MILLISECONDS, 8);
+        final CountDownLatch expired = new CountDownLatch(1);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                expired.countDown();
+            }
+        };
+        wheel.schedule(task, 1, TimeUnit.MILLISECONDS).cancel();
+        TimeUnit.MILLISECONDS.sleep(50);
+
+        long start = System.nanoTime();
+        wheel.schedule(task, 5, TimeUnit.MILLISECONDS);
+        assertTrue(expired.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void test_timeout_can_be_scheduled_again_after_cancel_or_expiry() throws Exception {
+        TimingWheel wheel = new TimingWheel(Executors.defaultThreadFactory(), 1, TimeUnit.MILLISECONDS, 8);
+        final AtomicInteger runs = new AtomicInteger();
+        TimingWheel.Timeout timeout = new TimingWheel.Timeout(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 1000; i++) {
+            // cancelled while still linked in its bucket from the previous round. long enough not to expire on a busy host
+            wheel.schedule(timeout, 1, TimeUnit.SECONDS);
+            assertTrue(timeout.cancel());
+        }
+        wheel.schedule(timeout, 5, TimeUnit.MILLISECONDS);
+        try {
+            wheel.schedule(timeout, 5, TimeUnit.MILLISECONDS);
+            fail("scheduled twice");
+        } catch (IllegalStateException expected) {
+        }
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(1, runs.get());
+
+        wheel.schedule(timeout, 5, TimeUnit.MILLISECONDS);
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(2, runs.get());
+        assertEquals(0, wheel.pending());
+    }
+}